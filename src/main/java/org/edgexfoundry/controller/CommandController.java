@@ -19,48 +19,127 @@
  *******************************************************************************/
 package org.edgexfoundry.controller;
 
+import java.io.IOException;
+import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.edgexfoundry.domain.CommandResponse;
+import org.edgexfoundry.exception.DeviceNotFoundException;
 import org.edgexfoundry.handler.CommandHandler;
+import org.edgexfoundry.support.logging.client.EdgeXLogger;
+import org.edgexfoundry.support.logging.client.EdgeXLoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 @RestController
 @RequestMapping("/api/v1/device")
 public class CommandController {
 
-	//private final static EdgeXLogger logger = EdgeXLoggerFactory.getEdgeXLogger(CommandController.class);
+	private final static EdgeXLogger logger = EdgeXLoggerFactory.getEdgeXLogger(CommandController.class);
+
+	// set when the command timed out with only part of the readings
+	public static final String INCOMPLETE_HEADER = "X-EdgeX-Incomplete";
+	// time of the oldest reading when any were served from the cache
+	public static final String ORIGIN_HEADER = "X-EdgeX-Origin";
+
+	private static final MediaType NDJSON = new MediaType("application", "x-ndjson");
 
 	@Autowired
 	private CommandHandler command;
 	
+	// the mapper behind the JSON responses, so streamed records read the same
+	@Autowired
+	private ObjectMapper mapper;
+	
+	// the body holds only the readings, whether they are complete or cached is told in the headers
 	@RequestMapping(value = "/{deviceId}/{cmd}", method = { RequestMethod.PUT, RequestMethod.POST, RequestMethod.GET })
-	public Callable<Map<String,String>> getCommand(@PathVariable String deviceId, @PathVariable String cmd,
-			@RequestBody(required=false) String arguments) {
-		Callable<Map<String,String>> callable = new Callable<Map<String,String>>() {
+	public Callable<ResponseEntity<Map<String,String>>> getCommand(@PathVariable String deviceId, @PathVariable String cmd,
+			@RequestBody(required=false) String arguments, @RequestParam(required=false) Long maxAge) {
+		Callable<ResponseEntity<Map<String,String>>> callable = new Callable<ResponseEntity<Map<String,String>>>() {
 			@Override
-			public Map<String,String> call() throws Exception {
-				return command.getResponse(deviceId, cmd, arguments);
+			public ResponseEntity<Map<String,String>> call() throws Exception {
+				CommandResponse response = command.getResponse(deviceId, cmd, arguments, maxAge);
+				HttpHeaders headers = new HttpHeaders();
+				if (response == null)
+					return new ResponseEntity<Map<String,String>>(headers, HttpStatus.OK);
+				if (CommandResponse.FAILED.equals(response.getStatus()))
+					throw new DeviceNotFoundException(response.getError());
+				if (CommandResponse.INCOMPLETE.equals(response.getStatus()))
+					headers.set(INCOMPLETE_HEADER, "true");
+				if (response.getOrigin() != null)
+					headers.set(ORIGIN_HEADER, String.valueOf(response.getOrigin()));
+				return new ResponseEntity<Map<String,String>>(response.getReadings(), headers, HttpStatus.OK);
 			}
 		};
 		return callable;
 	}
 	
 	@RequestMapping(value = "/all/{cmd}", method = { RequestMethod.PUT, RequestMethod.POST, RequestMethod.GET })
-	public Callable<Map<String,String>> getCommands(@PathVariable String cmd,
-			@RequestBody(required=false) String arguments) {
-		Callable<Map<String,String>> callable = new Callable<Map<String,String>>() {
+	public Callable<Map<String,CommandResponse>> getCommands(@PathVariable String cmd,
+			@RequestBody(required=false) String arguments, @RequestParam(required=false) Long maxAge) {
+		Callable<Map<String,CommandResponse>> callable = new Callable<Map<String,CommandResponse>>() {
 			@Override
-			public Map<String,String> call() throws Exception {
-				return command.getResponses(cmd, arguments);
+			public Map<String,CommandResponse> call() throws Exception {
+				return command.getResponses(cmd, arguments, maxAge);
 			}
 		};
 		return callable;
 	}
 	
+	// ?stream=ndjson writes one {"device":{...}} line per device, ?stream=sse one event named by device,
+	// each as soon as the device has answered
+	@RequestMapping(value = "/all/{cmd}", params = "stream", method = { RequestMethod.PUT, RequestMethod.POST, RequestMethod.GET })
+	public ResponseEntity<ResponseBodyEmitter> streamCommands(@PathVariable String cmd, @RequestParam String stream,
+			@RequestBody(required=false) String arguments, @RequestParam(required=false) Long maxAge) {
+		boolean sse = stream.equalsIgnoreCase("sse");
+		long timeout = command.getFanoutTimeout() + 5000;
+		ResponseBodyEmitter emitter = sse ? new SseEmitter(timeout) : new ResponseBodyEmitter(timeout);
+		AtomicBoolean closed = new AtomicBoolean(false);
+		command.streamResponses(cmd, arguments, maxAge, (device, response) -> {
+			if (closed.get())
+				return;
+			try {
+				synchronized (emitter) {
+					if (sse) {
+						((SseEmitter) emitter).send(SseEmitter.event().name(device).data(response, MediaType.APPLICATION_JSON));
+					} else {
+						// the record and its newline in one write, so a line is never left half sent
+						emitter.send(mapper.writeValueAsString(Collections.singletonMap(device, response)) + "\n", NDJSON);
+					}
+				}
+			} catch (IOException | IllegalStateException e) {
+				// the client went away, let the remaining devices finish without writing
+				closed.set(true);
+				logger.debug("Stopped streaming " + cmd + ": " + e.getMessage());
+			}
+		}, error -> {
+			if (closed.get())
+				return;
+			if (error == null)
+				emitter.complete();
+			else
+				emitter.completeWithError(error);
+		});
+		if (sse)
+			return new ResponseEntity<ResponseBodyEmitter>(emitter, HttpStatus.OK);
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(NDJSON);
+		return new ResponseEntity<ResponseBodyEmitter>(emitter, headers, HttpStatus.OK);
+	}
+	
 }
@@ -19,14 +19,22 @@
  *******************************************************************************/
 package org.edgexfoundry.controller;
 
+import java.util.List;
+import java.util.Map;
+
+import org.edgexfoundry.data.DeviceStore;
 import org.edgexfoundry.data.ObjectStore;
+import org.edgexfoundry.domain.ResponseObject;
+import org.edgexfoundry.handler.CoreDataMessageHandler;
 import org.edgexfoundry.handler.SNMPHandler;
+import org.edgexfoundry.snmp.SNMPDriver;
 import org.edgexfoundry.support.logging.client.EdgeXLogger;
 import org.edgexfoundry.support.logging.client.EdgeXLoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
 
@@ -41,6 +49,15 @@ public class ServiceController {
 	
 	@Autowired
 	SNMPHandler handler;
+	
+	@Autowired
+	SNMPDriver driver;
+	
+	@Autowired
+	CoreDataMessageHandler processor;
+	
+	@Autowired
+	DeviceStore devices;
 
 	@RequestMapping(path = "/debug/transformData/{transformData}", method = RequestMethod.GET)
 	public @ResponseBody String setTransformData(@PathVariable Boolean transformData) {
@@ -49,6 +66,30 @@ public class ServiceController {
 		return "Set transform data to: " + transformData;
 	}
 	
+	@RequestMapping(path = "/debug/transport", method = RequestMethod.GET)
+	public @ResponseBody List<Map<String, Object>> getTransportStatistics() {
+		return driver.getStatistics();
+	}
+	
+	@RequestMapping(path = "/debug/coredata", method = RequestMethod.GET)
+	public @ResponseBody Map<String, Object> getCoreDataStatistics() {
+		return processor.getStatistics();
+	}
+	
+	@RequestMapping(path = "/debug/bootstrap", method = RequestMethod.GET)
+	public @ResponseBody Map<String, Object> getBootstrapStatistics() {
+		return devices.getBootstrapStatistics();
+	}
+	
+	// cached history of a device object, newest first: the readings since a time in ms, otherwise the last count
+	@RequestMapping(path = "/history/{deviceId}/{object}", method = RequestMethod.GET)
+	public @ResponseBody List<ResponseObject> getHistory(@PathVariable String deviceId, @PathVariable String object,
+			@RequestParam(required=false) Long since, @RequestParam(defaultValue="1") int count) {
+		if (since != null)
+			return objects.getSince(deviceId, object, since);
+		return objects.getLast(deviceId, object, count);
+	}
+	
 	@RequestMapping(path = "/discovery", method = RequestMethod.POST)
 	public @ResponseBody String doDiscovery() {
 		logger.info("Running discovery request");
@@ -19,15 +19,23 @@
  *******************************************************************************/
 package org.edgexfoundry.data;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.edgexfoundry.controller.AddressableClient;
 import org.edgexfoundry.controller.DeviceClient;
 import org.edgexfoundry.controller.DeviceProfileClient;
 import org.edgexfoundry.domain.SNMPDevice;
+import org.edgexfoundry.domain.common.ValueDescriptor;
 import org.edgexfoundry.domain.meta.Addressable;
 import org.edgexfoundry.domain.meta.AdminState;
 import org.edgexfoundry.domain.meta.Device;
@@ -35,6 +43,7 @@ import org.edgexfoundry.domain.meta.DeviceProfile;
 import org.edgexfoundry.domain.meta.OperatingState;
 import org.edgexfoundry.exception.controller.NotFoundException;
 import org.edgexfoundry.handler.SNMPHandler;
+import org.edgexfoundry.snmp.SNMPDriver;
 import org.edgexfoundry.support.logging.client.EdgeXLogger;
 import org.edgexfoundry.support.logging.client.EdgeXLoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -57,6 +66,9 @@ public class DeviceStore {
 	@Autowired
 	private SNMPHandler SNMP;
 	
+	@Autowired
+	private SNMPDriver driver;
+	
 	@Autowired
 	private WatcherStore watchers;
 	
@@ -66,13 +78,65 @@ public class DeviceStore {
 	@Value("${service.name}")
 	private String serviceName;
 	
-	// cache for devices
-	private Map<String, SNMPDevice> devices = new HashMap<String,SNMPDevice>();
+	// how long a mirrored metadata device is trusted before it is fetched again
+	@Value("${metadata.cache.refresh:30000}")
+	private long metaRefresh;
+	
+	// cache for devices, keyed by name and by id
+	// both are changed together under the lock, lookups go to either without it
+	private final Map<String, SNMPDevice> devices = new ConcurrentHashMap<String,SNMPDevice>();
+	private final Map<String, SNMPDevice> devicesById = new ConcurrentHashMap<String,SNMPDevice>();
+	private final Object lock = new Object();
+	
+	// devices set up at once during the bootstrap
+	@Value("${metadata.bootstrap.parallelism:16}")
+	private int bootstrapParallelism;
+	
+	// phase timings of the last bootstrap
+	private volatile Map<String, Object> bootstrapStatistics = Collections.emptyMap();
+	
+	// read-only copy of the devices by name, rebuilt on the first read after a change
+	private volatile Map<String, Device> snapshot;
+	
+	// local mirror of the service's devices in metadata, keyed by id, with the ids by name
+	// entries are dropped by the metadata callbacks and refetched one device at a time
+	private final Map<String, MetaDevice> metaDevices = new ConcurrentHashMap<String, MetaDevice>();
+	private final Map<String, String> metaDeviceIds = new ConcurrentHashMap<String, String>();
+	
+	private static class MetaDevice {
+		private final Device device;
+		private final long fetched;
+		
+		private MetaDevice(Device device, long fetched) {
+			this.device = device;
+			this.fetched = fetched;
+		}
+	}
+	
+	private void index(SNMPDevice device) {
+		synchronized (lock) {
+			SNMPDevice previous = devices.put(device.getName(), device);
+			if (previous != null && previous.getId() != null)
+				devicesById.remove(previous.getId());
+			if (device.getId() != null)
+				devicesById.put(device.getId(), device);
+			snapshot = null;
+		}
+	}
+	
+	private SNMPDevice unindex(String deviceName) {
+		synchronized (lock) {
+			SNMPDevice device = devices.remove(deviceName);
+			if (device != null && device.getId() != null)
+				devicesById.remove(device.getId());
+			snapshot = null;
+			return device;
+		}
+	}
 	
 	public boolean remove(Device device) {
 		logger.debug("Removing managed device:  " + device);
-		if (devices.containsKey(device.getName())) {
-			devices.remove(device.getName());			
+		if (unindex(device.getName()) != null) {
 			SNMP.disconnectDevice(device);
 			deviceClient.updateOpState(device.getId(), OperatingState.DISABLED.name());
 			profiles.removeDevice(device);
@@ -81,7 +145,8 @@ public class DeviceStore {
 	}
 
 	public boolean remove(String deviceId) {
-		SNMPDevice d = devices.values().stream().filter(device -> device.getId().equals(deviceId)).findAny().orElse(null);
+		forgetMetaDevice(deviceId);
+		SNMPDevice d = devicesById.get(deviceId);
 		if (d != null) {
 			remove(d);
 		}
@@ -90,15 +155,14 @@ public class DeviceStore {
 	
 	public boolean add(String deviceId) {
 		logger.info("Adding device with id: " + deviceId);
+		forgetMetaDevice(deviceId);
 		Device device = deviceClient.device(deviceId);
 		return add(device);
 	}
 	
 	public boolean add(Device device) {
-		if (devices.containsKey(device.getName())) {
-			devices.remove(device.getName());
+		if (unindex(device.getName()) != null)
 			profiles.removeDevice(device);
-		}
 		Device metaDevice = addDeviceToMetaData(device);
 		if (metaDevice == null) {
 			remove(device);
@@ -143,11 +207,12 @@ public class DeviceStore {
 		
 		profiles.addDevice(device);
 		SNMPDevice SNMPDevice = new SNMPDevice(device);
-		devices.put(device.getName(), SNMPDevice);
+		index(SNMPDevice);
 		return device;
 	}
 
 	public boolean update(String deviceId) {
+		forgetMetaDevice(deviceId);
 		Device device = deviceClient.device(deviceId);
 		Device localDevice = getDeviceById(deviceId);
 		if (device != null && localDevice != null && compare(device,localDevice))
@@ -170,34 +235,112 @@ public class DeviceStore {
 		return false;
 	}
 
+	// an unmodifiable snapshot, cheap to take and safe to iterate while devices change
 	public Map<String, Device> getDevices() {
-		Map<String, Device> d = devices.entrySet().stream().collect(Collectors.toMap(
-				e -> e.getKey(),
-				e -> e.getValue().getDevice()));
-		return d;
+		Map<String, Device> current = snapshot;
+		if (current != null)
+			return current;
+		synchronized (lock) {
+			if (snapshot == null)
+				snapshot = Collections.unmodifiableMap(new HashMap<String, Device>(devices));
+			return snapshot;
+		}
 	}
 	
 	public Map<String, SNMPDevice> getSNMPDevices() {
-		return devices;
+		return Collections.unmodifiableMap(devices);
 	}
 	
+	// Bulk bootstrap: the devices and value descriptors are fetched from metadata once, each distinct profile
+	// is compiled once, then the devices are set up in parallel, the time of each phase is logged and kept for /debug/bootstrap
 	public Map<String, Device> initialize(String id) {
+		Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+		long started = System.currentTimeMillis();
+		long phase = started;
+		
 		List<Device> metaDevices = deviceClient.devicesForService(id);
-		devices = new HashMap<>();
+		synchronized (lock) {
+			devices.clear();
+			devicesById.clear();
+			snapshot = null;
+		}
+		statistics.put("devices", metaDevices.size());
+		phase = lap(statistics, "fetchDevicesMs", phase);
+		
 		watchers.initialize(id);
 		SNMP.initialize();
-		for (Device device : metaDevices) {
-			deviceClient.updateOpState(device.getId(),OperatingState.DISABLED.name());
-			add(device);
+		phase = lap(statistics, "servicesMs", phase);
+		
+		Map<String, ValueDescriptor> descriptors = profiles.fetchValueDescriptors();
+		statistics.put("valueDescriptors", descriptors.size());
+		phase = lap(statistics, "fetchValueDescriptorsMs", phase);
+		
+		statistics.put("profiles", profiles.compileProfiles(metaDevices, descriptors));
+		phase = lap(statistics, "compileProfilesMs", phase);
+		
+		AtomicInteger count = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, bootstrapParallelism), r -> {
+			Thread thread = new Thread(r, "device-bootstrap-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		AtomicInteger failed = new AtomicInteger();
+		try {
+			List<CompletableFuture<Void>> adds = new ArrayList<CompletableFuture<Void>>();
+			for (Device device : metaDevices) {
+				adds.add(CompletableFuture.runAsync(() -> {
+					try {
+						if (!bootstrap(device, descriptors))
+							failed.incrementAndGet();
+					} catch (Exception e) {
+						failed.incrementAndGet();
+						logger.error("Bootstrapping device " + device.getName() + " failed with error " + e.getMessage());
+					}
+				}, pool));
+			}
+			CompletableFuture.allOf(adds.toArray(new CompletableFuture[adds.size()])).join();
+		} finally {
+			pool.shutdown();
 		}
-		logger.info("Device service has " + devices.size() + " devices.");
+		statistics.put("failed", failed.get());
+		lap(statistics, "addDevicesMs", phase);
+		statistics.put("totalMs", System.currentTimeMillis() - started);
+		bootstrapStatistics = Collections.unmodifiableMap(statistics);
+		
+		logger.info("Device service has " + devices.size() + " devices, bootstrap " + statistics);
 		return getDevices();
 	}
 	
+	private long lap(Map<String, Object> statistics, String name, long since) {
+		long now = System.currentTimeMillis();
+		statistics.put(name, now - since);
+		return now;
+	}
+	
+	// a device listed by metadata already has its id and addressable, so the lookups and
+	// op state round trips of add are skipped, the device keeps the op state metadata has for it
+	private boolean bootstrap(Device device, Map<String, ValueDescriptor> descriptors) {
+		if (device.getId() == null || device.getAddressable() == null)
+			return add(device);
+		profiles.addDevice(device, descriptors);
+		index(new SNMPDevice(device));
+		mirror(device, System.currentTimeMillis());
+		if (OperatingState.ENABLED.equals(device.getOperatingState()))
+			SNMP.initializeDevice(device);
+		return true;
+	}
+	
+	public Map<String, Object> getBootstrapStatistics() {
+		return bootstrapStatistics;
+	}
+	
+	// the full device list of the service, also refreshes the mirror
 	public List<Device> getMetaDevices() {
 		List<Device> metaDevices;
 		metaDevices = deviceClient.devicesForServiceByName(serviceName);
+		long now = System.currentTimeMillis();
 		for (Device metaDevice: metaDevices) {
+			mirror(metaDevice, now);
 			Device device = devices.get(metaDevice.getName());
 			if (device != null)
 				device.setOperatingState(metaDevice.getOperatingState());
@@ -206,36 +349,72 @@ public class DeviceStore {
 	}
 	
 	public Device getMetaDevice(String deviceName) {
-		List<Device> metaDevices = getMetaDevices();
-		Device result = metaDevices.stream().filter(device -> deviceName.equals(device.getName())).findAny().orElse(null);
-		return result;
+		String deviceId = metaDeviceIds.get(deviceName);
+		MetaDevice metaDevice = deviceId == null ? null : metaDevices.get(deviceId);
+		if (isFresh(metaDevice))
+			return metaDevice.device;
+		try {
+			return mirror(deviceClient.deviceForName(deviceName), System.currentTimeMillis());
+		} catch (javax.ws.rs.NotFoundException e) {
+			if (deviceId != null)
+				forgetMetaDevice(deviceId);
+			return null;
+		} catch (Exception e) {
+			logger.error("Fetching device " + deviceName + " from metadata failed with error " + e.getMessage());
+			return metaDevice == null ? null : metaDevice.device;
+		}
 	}
 	
 	public Device getMetaDeviceById(String deviceId) {
-		List<Device> metaDevices = getMetaDevices();
-		Device result = metaDevices.stream().filter(device -> deviceId.equals(device.getId())).findAny().orElse(null);
-		return result;
+		MetaDevice metaDevice = metaDevices.get(deviceId);
+		if (isFresh(metaDevice))
+			return metaDevice.device;
+		try {
+			return mirror(deviceClient.device(deviceId), System.currentTimeMillis());
+		} catch (javax.ws.rs.NotFoundException e) {
+			forgetMetaDevice(deviceId);
+			return null;
+		} catch (Exception e) {
+			logger.error("Fetching device " + deviceId + " from metadata failed with error " + e.getMessage());
+			return metaDevice == null ? null : metaDevice.device;
+		}
+	}
+	
+	private boolean isFresh(MetaDevice metaDevice) {
+		return metaDevice != null && System.currentTimeMillis() - metaDevice.fetched < metaRefresh;
+	}
+	
+	// only devices of this service are mirrored, others are treated as not found
+	private Device mirror(Device device, long fetched) {
+		if (device == null || device.getId() == null)
+			return null;
+		if (device.getService() == null || !serviceName.equals(device.getService().getName()))
+			return null;
+		metaDevices.put(device.getId(), new MetaDevice(device, fetched));
+		metaDeviceIds.put(device.getName(), device.getId());
+		return device;
+	}
+	
+	private void forgetMetaDevice(String deviceId) {
+		MetaDevice metaDevice = metaDevices.remove(deviceId);
+		if (metaDevice != null)
+			metaDeviceIds.remove(metaDevice.device.getName(), deviceId);
 	}
 	
 	public Device getDevice(String deviceName) {
-		if (devices != null)
-			return devices.get(deviceName);
-		else
+		if (deviceName == null)
 			return null;
+		return devices.get(deviceName);
 	}
 	
 	public Device getDeviceById(String deviceId) {
-		if (devices != null) {
-			return devices.values().stream().filter(device -> device.getId().equals(deviceId)).findAny().orElse(null);
-		}
-		return null;
+		return getSNMPDeviceById(deviceId);
 	}
 	
 	public SNMPDevice getSNMPDeviceById(String deviceId) {
-		if (devices != null) {
-			return devices.values().stream().filter(device -> device.getId().equals(deviceId)).findAny().orElse(null);
-		}
-		return null;
+		if (deviceId == null)
+			return null;
+		return devicesById.get(deviceId);
 	}
 
 	public boolean isDeviceLocked(String deviceId){
@@ -252,10 +431,14 @@ public class DeviceStore {
 
 	public void setDeviceOpState(String deviceName, OperatingState state){
 		deviceClient.updateOpStateByName(deviceName, state.name());
+		String deviceId = metaDeviceIds.get(deviceName);
+		if (deviceId != null)
+			forgetMetaDevice(deviceId);
 	}
 
 	public void setDeviceByIdOpState(String deviceId, OperatingState state){
 		deviceClient.updateOpState(deviceId, state.name());
+		forgetMetaDevice(deviceId);
 	}
 
 	public boolean updateProfile(String profileId) {
@@ -266,12 +449,14 @@ public class DeviceStore {
 			// No such profile exists to update 
 			return true;
 		}
-		boolean success = true;
-		for (Device device: devices.entrySet().stream().map(d -> d.getValue()).filter(d -> profile.getName().equals(d.getProfile().getName())).collect(Collectors.toList())) {
-			//update all devices that use the profile
+		// the profile is compiled once and its devices are moved over to it, nothing is fetched per device
+		for (String deviceName: profiles.updateProfile(profile)) {
+			SNMPDevice device = devices.get(deviceName);
+			if (device == null)
+				continue;
 			device.setProfile(profile);
-			success &= update(device.getId());
+			driver.invalidate(device);
 		}
-		return success;
+		return true;
 	}
 }
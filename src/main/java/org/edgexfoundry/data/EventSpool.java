@@ -0,0 +1,371 @@
+/*******************************************************************************
+ * Copyright 2016-2017 Dell Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @microservice:  device-snmp
+ * @author: Anantha Boyapalle, Dell
+ * @version: 1.0.0
+ *******************************************************************************/
+package org.edgexfoundry.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.edgexfoundry.domain.core.Event;
+import org.edgexfoundry.domain.core.Reading;
+import org.edgexfoundry.support.logging.client.EdgeXLogger;
+import org.edgexfoundry.support.logging.client.EdgeXLoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+// Write-ahead spool of events core data could not take, kept in memory-mapped segment files.
+// A record is an int length followed by the spool time, the device and its readings.
+// The length is written last so a torn record is never read back, and is negated once
+// the record has been delivered so a restart only replays what is still pending.
+@Component
+public class EventSpool {
+	
+	private final static EdgeXLogger logger = EdgeXLoggerFactory.getEdgeXLogger(EventSpool.class);
+	
+	private static final String PREFIX = "spool-";
+	private static final String SUFFIX = ".seg";
+	
+	// directory of the segment files, the spool is disabled when empty
+	@Value("${coredata.spool.dir:}")
+	private String spoolDir;
+	@Value("${coredata.spool.segment.size:4194304}")
+	private int segmentSize;
+	// beyond this many segments the oldest is dropped
+	@Value("${coredata.spool.segments:64}")
+	private int maxSegments;
+	
+	private final Deque<Segment> segments = new ArrayDeque<Segment>();
+	private long pending;
+	private long spooled;
+	private long delivered;
+	private long dropped;
+	
+	private static class Segment {
+		private final long sequence;
+		private final File file;
+		private final MappedByteBuffer buffer;
+		private int writePosition;
+		// nothing before this offset is still pending
+		private int readPosition;
+		private int pending;
+		
+		private Segment(long sequence, File file, MappedByteBuffer buffer) {
+			this.sequence = sequence;
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+	
+	// an event read back from the spool, handed to delivered once core data has it
+	public static class SpooledEvent {
+		private final Segment segment;
+		private final int offset;
+		private final long spooled;
+		private final Event event;
+		
+		private SpooledEvent(Segment segment, int offset, long spooled, Event event) {
+			this.segment = segment;
+			this.offset = offset;
+			this.spooled = spooled;
+			this.event = event;
+		}
+		
+		public Event getEvent() {
+			return event;
+		}
+		
+		public long getSpooled() {
+			return spooled;
+		}
+	}
+	
+	public boolean isEnabled() {
+		return spoolDir != null && !spoolDir.isEmpty();
+	}
+	
+	@PostConstruct
+	public synchronized void open() {
+		if (!isEnabled())
+			return;
+		File dir = new File(spoolDir);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			logger.error("Cannot create spool directory " + dir.getAbsolutePath() + ", spooling disabled");
+			spoolDir = null;
+			return;
+		}
+		File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+		Arrays.sort(files);
+		for (File file: files) {
+			try {
+				Segment segment = map(sequence(file), file);
+				recover(segment);
+				segments.addLast(segment);
+				pending += segment.pending;
+			} catch (IOException | NumberFormatException e) {
+				logger.error("Cannot open spool segment " + file + ": " + e.getMessage());
+			}
+		}
+		if (pending > 0)
+			logger.info("Spool holds " + pending + " undelivered events");
+	}
+	
+	@PreDestroy
+	public synchronized void close() {
+		for (Segment segment: segments)
+			segment.buffer.force();
+	}
+	
+	public synchronized boolean append(Event event) {
+		if (!isEnabled())
+			return false;
+		byte[] record = encode(event);
+		if (record.length + 4 > segmentSize) {
+			logger.error("Event for " + event.getDevice() + " too large to spool");
+			dropped++;
+			return false;
+		}
+		Segment segment = segments.peekLast();
+		try {
+			if (segment == null || segment.writePosition + 4 + record.length > segment.buffer.capacity())
+				segment = roll();
+		} catch (IOException e) {
+			logger.error("Cannot create spool segment: " + e.getMessage());
+			dropped++;
+			return false;
+		}
+		ByteBuffer buffer = segment.buffer.duplicate();
+		buffer.position(segment.writePosition + 4);
+		buffer.put(record);
+		segment.buffer.putInt(segment.writePosition, record.length);
+		segment.writePosition += 4 + record.length;
+		segment.pending++;
+		pending++;
+		spooled++;
+		return true;
+	}
+	
+	// spools the event only while older ones are pending, so it is replayed after them rather than
+	// overtaking them, false when the spool is empty or could not take it
+	public synchronized boolean appendIfPending(Event event) {
+		return pending > 0 && append(event);
+	}
+	
+	// the oldest event still pending, or null when the spool is empty
+	public synchronized SpooledEvent peek() {
+		while (!segments.isEmpty()) {
+			Segment segment = segments.peekFirst();
+			while (segment.readPosition < segment.writePosition) {
+				int offset = segment.readPosition;
+				int length = segment.buffer.getInt(offset);
+				if (length > 0) {
+					try {
+						ByteBuffer buffer = segment.buffer.duplicate();
+						buffer.position(offset + 4);
+						long time = buffer.getLong();
+						return new SpooledEvent(segment, offset, time, decode(buffer));
+					} catch (RuntimeException e) {
+						logger.error("Skipping unreadable spool record in " + segment.file + ": " + e.getMessage());
+						settle(segment, offset, length);
+						dropped++;
+						continue;
+					}
+				}
+				segment.readPosition = offset + 4 - length;
+			}
+			if (segment == segments.peekLast())
+				return null;
+			delete(segments.pollFirst());
+		}
+		return null;
+	}
+	
+	public synchronized void delivered(SpooledEvent event) {
+		// the segment may have been dropped while the event was out
+		if (!segments.contains(event.segment))
+			return;
+		int length = event.segment.buffer.getInt(event.offset);
+		if (length > 0) {
+			settle(event.segment, event.offset, length);
+			delivered++;
+		}
+	}
+	
+	public synchronized Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+		statistics.put("enabled", isEnabled());
+		statistics.put("segments", segments.size());
+		long bytes = 0;
+		for (Segment segment: segments)
+			bytes += segment.writePosition;
+		statistics.put("bytes", bytes);
+		statistics.put("pending", pending);
+		statistics.put("spooled", spooled);
+		statistics.put("delivered", delivered);
+		statistics.put("dropped", dropped);
+		long oldest = oldestSpooled();
+		statistics.put("lag", oldest < 0 ? 0 : System.currentTimeMillis() - oldest);
+		return statistics;
+	}
+	
+	// spool time of the oldest pending record, or -1, read in place without settling or dropping anything
+	private long oldestSpooled() {
+		for (Segment segment: segments) {
+			int offset = segment.readPosition;
+			while (offset < segment.writePosition) {
+				int length = segment.buffer.getInt(offset);
+				if (length > 0)
+					return segment.buffer.getLong(offset + 4);
+				offset += 4 - length;
+			}
+		}
+		return -1;
+	}
+	
+	private void settle(Segment segment, int offset, int length) {
+		segment.buffer.putInt(offset, -length);
+		segment.pending--;
+		pending--;
+		if (segment.readPosition == offset)
+			segment.readPosition = offset + 4 + length;
+	}
+	
+	private Segment roll() throws IOException {
+		while (segments.size() >= Math.max(maxSegments, 1)) {
+			Segment oldest = segments.pollFirst();
+			logger.error("Spool full, dropping " + oldest.pending + " events in " + oldest.file);
+			dropped += oldest.pending;
+			pending -= oldest.pending;
+			delete(oldest);
+		}
+		long sequence = segments.isEmpty() ? 0 : segments.peekLast().sequence + 1;
+		Segment segment = map(sequence, new File(spoolDir, String.format("%s%020d%s", PREFIX, sequence, SUFFIX)));
+		segments.addLast(segment);
+		return segment;
+	}
+	
+	private Segment map(long sequence, File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+			if (raf.length() == 0)
+				raf.setLength(segmentSize);
+			return new Segment(sequence, file, channel.map(FileChannel.MapMode.READ_WRITE, 0, raf.length()));
+		}
+	}
+	
+	// find the end of the written records and the first one still pending
+	private void recover(Segment segment) {
+		MappedByteBuffer buffer = segment.buffer;
+		int position = 0;
+		segment.readPosition = -1;
+		while (position + 4 <= buffer.capacity()) {
+			int length = buffer.getInt(position);
+			if (length == 0 || position + 4 + Math.abs(length) > buffer.capacity())
+				break;
+			if (length > 0) {
+				segment.pending++;
+				if (segment.readPosition < 0)
+					segment.readPosition = position;
+			}
+			position += 4 + Math.abs(length);
+		}
+		segment.writePosition = position;
+		if (segment.readPosition < 0)
+			segment.readPosition = position;
+	}
+	
+	private void delete(Segment segment) {
+		if (!segment.file.delete())
+			logger.error("Cannot delete spool segment " + segment.file);
+	}
+	
+	private long sequence(File file) {
+		String name = file.getName();
+		return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+	}
+	
+	private byte[] encode(Event event) {
+		List<Reading> readings = event.getReadings();
+		List<byte[]> strings = new ArrayList<byte[]>();
+		strings.add(bytes(event.getDevice()));
+		int size = 8 + 4 + 4;
+		for (Reading reading: readings) {
+			strings.add(bytes(reading.getName()));
+			strings.add(bytes(reading.getValue()));
+			size += 8;
+		}
+		for (byte[] string: strings)
+			size += 4 + string.length;
+		
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.putLong(System.currentTimeMillis());
+		putString(buffer, strings.get(0));
+		buffer.putInt(readings.size());
+		for (int i = 0; i < readings.size(); i++) {
+			putString(buffer, strings.get(1 + 2 * i));
+			putString(buffer, strings.get(2 + 2 * i));
+			buffer.putLong(readings.get(i).getOrigin());
+		}
+		return buffer.array();
+	}
+	
+	private Event decode(ByteBuffer buffer) {
+		String device = getString(buffer);
+		int count = buffer.getInt();
+		List<Reading> readings = new ArrayList<Reading>(count);
+		for (int i = 0; i < count; i++) {
+			Reading reading = new Reading();
+			reading.setName(getString(buffer));
+			reading.setValue(getString(buffer));
+			reading.setOrigin(buffer.getLong());
+			readings.add(reading);
+		}
+		Event event = new Event(device);
+		event.setReadings(readings);
+		return event;
+	}
+	
+	private byte[] bytes(String string) {
+		return string == null ? new byte[0] : string.getBytes(StandardCharsets.UTF_8);
+	}
+	
+	private void putString(ByteBuffer buffer, byte[] string) {
+		buffer.putInt(string.length);
+		buffer.put(string);
+	}
+	
+	private String getString(ByteBuffer buffer) {
+		byte[] string = new byte[buffer.getInt()];
+		buffer.get(string);
+		return new String(string, StandardCharsets.UTF_8);
+	}
+}
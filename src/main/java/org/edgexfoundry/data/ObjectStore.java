@@ -19,15 +19,16 @@
  *******************************************************************************/
 package org.edgexfoundry.data;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.edgexfoundry.domain.ResponseObject;
 import org.edgexfoundry.domain.SNMPDevice;
 import org.edgexfoundry.domain.SNMPObject;
+import org.edgexfoundry.domain.SNMPValue;
 import org.edgexfoundry.domain.meta.Device;
 import org.edgexfoundry.domain.meta.OperatingState;
 import org.edgexfoundry.domain.meta.PropertyValue;
@@ -37,6 +38,7 @@ import org.edgexfoundry.handler.CoreDataMessageHandler;
 import org.edgexfoundry.snmp.ObjectTransform;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.snmp4j.smi.Variable;
 import org.springframework.stereotype.Component;
 
 //import org.edgexfoundry.support.logging.client.EdgeXLogger;
@@ -60,12 +62,14 @@ public class ObjectStore {
 	@Autowired
 	private CoreDataMessageHandler processor;
 	
+	// readings of history kept per device object
 	@Value("${data.cache.size:1}")
 	private int CACHE_SIZE;
 	
-	private Map<String,Map<String,List<String>>> objectCache = new HashMap<>();
+	private Map<String,Map<String,ReadingBuffer>> objectCache = new ConcurrentHashMap<>();
 	
-	private Map<String,Map<String,List<ResponseObject>>> responseCache = new HashMap<>();
+	// read by completion threads while others write, so concurrent at both levels
+	private Map<String,Map<String,List<ResponseObject>>> responseCache = new ConcurrentHashMap<>();
 	
 	public Boolean getTransformData() {
 		return transformData;
@@ -75,66 +79,74 @@ public class ObjectStore {
 		transformData = transform;
 	}
 
-	public void put(SNMPDevice device, ResourceOperation operation, String value) {
-		if (value == null || value.equals(""))
+	public void put(SNMPDevice device, ResourceOperation operation, SNMPValue value) {
+		if (value == null || value.isEmpty())
 			return;
 		
-		List<SNMPObject> objectsList = createObjectsList(operation, device);
+		Map<String, SNMPObject> objectsList = createObjectsList(operation, device);
 		
 		String deviceId = device.getId();
 		JsonObject jsonObject = new JsonObject();
+		long origin = System.currentTimeMillis();
 		
-		for (SNMPObject obj: objectsList) {
-			String objectName = obj.getName();
-			String result = transformResult(value, obj, device);
-			jsonObject.addProperty(obj.getName(),result);
+		for (Map.Entry<String, SNMPObject> entry: objectsList.entrySet()) {
+			String objectName = entry.getKey();
+			String result = transformResult(value, entry.getValue(), device);
+			jsonObject.addProperty(objectName,result);
 			
-			synchronized(objectCache) {
-				if (objectCache.get(deviceId) == null)
-					objectCache.put(deviceId, new HashMap<String,List<String>>());
-				if (objectCache.get(deviceId).get(objectName) == null)
-					objectCache.get(deviceId).put(objectName, new ArrayList<String>());
-				objectCache.get(deviceId).get(objectName).add(0, result);
-				if (objectCache.get(deviceId).get(objectName).size() == CACHE_SIZE)
-					objectCache.get(deviceId).get(objectName).remove(CACHE_SIZE-1);
-			}
+			objectCache.computeIfAbsent(deviceId, id -> new ConcurrentHashMap<String,ReadingBuffer>())
+				.computeIfAbsent(objectName, name -> new ReadingBuffer(name, CACHE_SIZE)).add(origin, result);
 		}
 		
-		String operationId = objectsList.stream().map(o -> o.getName()).collect(Collectors.toList()).toString();
+		String operationId = objectsList.keySet().toString();
 		
-		List<ResponseObject> resps = processor.sendCoreData(device.getName(), jsonObject, profiles.getObjects().get(device.getName()));
-		synchronized(responseCache) {
-			if (responseCache.get(deviceId) == null)
-				responseCache.put(deviceId, new HashMap<String,List<ResponseObject>>());
-			responseCache.get(deviceId).put(operationId,resps);
-		}
+		List<ResponseObject> resps = processor.sendCoreData(device.getName(), jsonObject, profiles.getObjects(device.getName()));
+		Map<String,List<ResponseObject>> deviceResponses = responseCache.computeIfAbsent(deviceId, id -> new ConcurrentHashMap<String,List<ResponseObject>>());
+		if (resps != null)
+			deviceResponses.put(operationId, resps);
+		else
+			deviceResponses.remove(operationId);
 	}
 	
-	private List<SNMPObject> createObjectsList(ResourceOperation operation, Device device) {
-		Map<String, SNMPObject> objects = profiles.getObjects().get(device.getName());
-		List<SNMPObject> objectsList = new ArrayList<SNMPObject>();
+	// the objects an operation reads keyed by the name their readings are reported under,
+	// the parameter for the operation's own object when it is bound to a value descriptor
+	private Map<String, SNMPObject> createObjectsList(ResourceOperation operation, Device device) {
+		Map<String, SNMPObject> objects = profiles.getObjects(device.getName());
+		Map<String, SNMPObject> objectsList = new LinkedHashMap<String, SNMPObject>();
 		if (operation != null && objects != null) {
 			SNMPObject object = objects.get(operation.getObject());
-			if (!profiles.getValueDescriptors().stream().filter(
-					desc -> desc.getName().equals(operation.getParameter()))
-					.collect(Collectors.toList()).isEmpty())
-				object.setName(operation.getParameter());
-			objectsList.add(object);
+			if (profiles.getValueDescriptor(device.getName(), operation.getParameter()) != null)
+				objectsList.put(operation.getParameter(), object);
+			else
+				objectsList.put(object.getName(), object);
 			
 			if(operation.getSecondary() != null){
 				for (String secondary: operation.getSecondary())
-					objectsList.add(objects.get(secondary));
+					objectsList.put(secondary, objects.get(secondary));
 			}
 		}
 		
 		return objectsList;
 	}
 
-	private String transformResult(String result, SNMPObject object, SNMPDevice device) {
+	// the value is only turned into a string here, once it has been transformed
+	private String transformResult(SNMPValue result, SNMPObject object, SNMPDevice device) {
 		
-		PropertyValue propValue = object.getProperties().getValue();
+		// a walked table holds a row index to value object, transform each row on its own
+		if (result.isTable()) {
+			JsonObject rows = new JsonObject();
+			for (Map.Entry<String, Variable> row: result.getRows().entrySet())
+				rows.addProperty(row.getKey(), checkAssertion(transform.transform(object.getValueTransform(), row.getValue()), object, device));
+			return rows.toString();
+		}
+		if (result.getVariable() != null)
+			return checkAssertion(transform.transform(object.getValueTransform(), result.getVariable()), object, device);
+		return checkAssertion(transform.transform(object.getValueTransform(), result.getText()), object, device);
+	}
+
+	private String checkAssertion(String transformResult, SNMPObject object, SNMPDevice device) {
 		
-		String transformResult = transform.transform(propValue, result);
+		PropertyValue propValue = object.getProperties().getValue();
 		
 		// if there is an assertion set for the object on a get command, test it
 		// if it fails the assertion, pass error to core services (disable device?)
@@ -147,22 +159,36 @@ public class ObjectStore {
 	}
 
 	public String get(String deviceId, String object) {
-		return get(deviceId, object, 1).get(0);
+		ReadingBuffer buffer = getBuffer(deviceId, object);
+		ResponseObject latest = buffer == null ? null : buffer.latest();
+		return latest == null ? null : latest.getValue();
 	}
 
-	private List<String> get(String deviceId, String object, int i) {
-		if (objectCache.get(deviceId) == null 
-				|| objectCache.get(deviceId).get(object) == null 
-				|| objectCache.get(deviceId).get(object).size() < i)
-			return null;
-		return objectCache.get(deviceId).get(object).subList(0, i);
+	// the newest n readings of the object, newest first
+	public List<ResponseObject> getLast(String deviceId, String object, int n) {
+		ReadingBuffer buffer = getBuffer(deviceId, object);
+		if (buffer == null)
+			return Collections.emptyList();
+		return buffer.last(n);
+	}
+
+	// the readings of the object taken at or after since, newest first
+	public List<ResponseObject> getSince(String deviceId, String object, long since) {
+		ReadingBuffer buffer = getBuffer(deviceId, object);
+		if (buffer == null)
+			return Collections.emptyList();
+		return buffer.since(since);
+	}
+
+	private ReadingBuffer getBuffer(String deviceId, String object) {
+		Map<String,ReadingBuffer> buffers = objectCache.get(deviceId);
+		return buffers == null ? null : buffers.get(object);
 	}
 
 	public JsonObject get(SNMPDevice device, ResourceOperation operation) {
 		JsonObject jsonObject = new JsonObject();
-		List<SNMPObject> objectsList = createObjectsList(operation, device);
-		for (SNMPObject obj: objectsList) {
-			String objectName = obj.getName();
+		Map<String, SNMPObject> objectsList = createObjectsList(operation, device);
+		for (String objectName: objectsList.keySet()) {
 			jsonObject.addProperty(objectName, get(device.getId(),objectName));
 		}
 		return jsonObject;
@@ -170,11 +196,31 @@ public class ObjectStore {
 	
 	public List<ResponseObject> getResponses(SNMPDevice device, ResourceOperation operation) {
 		String deviceId = device.getId();
-		List<SNMPObject> objectsList = createObjectsList(operation, device);
+		Map<String, SNMPObject> objectsList = createObjectsList(operation, device);
 		if (objectsList == null)
 			throw new DeviceNotFoundException("Device: " + deviceId + " failed to respond to command " + operation.getObject());
-		String operationId = objectsList.stream().map(o -> o.getName()).collect(Collectors.toList()).toString();
-		return responseCache.get(deviceId).get(operationId);
+		String operationId = objectsList.keySet().toString();
+		Map<String,List<ResponseObject>> deviceResponses = responseCache.get(deviceId);
+		return deviceResponses == null ? null : deviceResponses.get(operationId);
+	}
+	
+	// the cached responses of the operation if they were all read at or after since, otherwise null
+	public List<ResponseObject> getResponses(SNMPDevice device, ResourceOperation operation, long since) {
+		Map<String,List<ResponseObject>> deviceResponses = responseCache.get(device.getId());
+		if (deviceResponses == null)
+			return null;
+		List<ResponseObject> responses = deviceResponses.get(getOperationId(operation, device));
+		if (responses == null || responses.isEmpty())
+			return null;
+		for (ResponseObject response: responses)
+			if (response.getOrigin() < since)
+				return null;
+		return responses;
+	}
+	
+	// identifies the set of objects an operation reads, the same key the responses are cached under
+	public String getOperationId(ResourceOperation operation, SNMPDevice device) {
+		return createObjectsList(operation, device).keySet().toString();
 	}
 	
 }
@@ -20,12 +20,18 @@
 package org.edgexfoundry.data;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.edgexfoundry.controller.DeviceProfileClient;
 import org.edgexfoundry.controller.ValueDescriptorClient;
+import org.edgexfoundry.domain.CompiledProfile;
 import org.edgexfoundry.domain.SNMPObject;
 import org.edgexfoundry.domain.common.IoTType;
 import org.edgexfoundry.domain.common.ValueDescriptor;
@@ -37,6 +43,7 @@ import org.edgexfoundry.domain.meta.ProfileResource;
 import org.edgexfoundry.domain.meta.PropertyValue;
 import org.edgexfoundry.domain.meta.ResourceOperation;
 import org.edgexfoundry.domain.meta.Units;
+import org.edgexfoundry.snmp.SNMPDriver;
 import org.edgexfoundry.support.logging.client.EdgeXLogger;
 import org.edgexfoundry.support.logging.client.EdgeXLoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -52,23 +59,42 @@ public class ProfileStore {
 	@Autowired
 	private DeviceProfileClient deviceProfileClient;
 	
-	private List<ValueDescriptor> valueDescriptors = new ArrayList<ValueDescriptor>();
-
-	// map (key of device name) to cache of each devices resources keyed by resource name
-	// mapped to resource operations arrays keyed by get or put operation
-	private Map<String, Map<String, Map<String, List<ResourceOperation>>>> commands = new HashMap<>();
+	@Autowired
+	private SNMPDriver driver;
+	
+	// value descriptors used by the devices, keyed by name
+	private Map<String, ValueDescriptor> valueDescriptors = new ConcurrentHashMap<String, ValueDescriptor>();
+	
+	// map (key of value descriptor name) to the names of the profiles with devices that bind it,
+	// a descriptor is dropped from valueDescriptors along with the last of them
+	private Map<String, Set<String>> descriptorProfiles = new ConcurrentHashMap<>();
+	
+	// compiled profiles keyed by profile name, shared by all the devices of the profile
+	private Map<String, CompiledProfile> profiles = new ConcurrentHashMap<>();
+	
+	// map (key of device name) to the compiled profile of the device
+	private Map<String, CompiledProfile> deviceProfiles = new ConcurrentHashMap<>();
+	
+	// map (key of profile name) to the names of its devices
+	private Map<String, Set<String>> profileDevices = new ConcurrentHashMap<>();
 
-	public Map<String, Map<String, Map<String, List<ResourceOperation>>>> getCommands() {
-		return commands;
+	// the device's resources keyed by lower case resource name, mapped to
+	// resource operations arrays keyed by get or set operation, null for an unknown device
+	public Map<String, Map<String, List<ResourceOperation>>> getCommands(String deviceName) {
+		CompiledProfile profile = getProfile(deviceName);
+		return profile == null ? null : profile.getCommands();
 	}
-		
-	// map (key of device name) to cache each devices profile objects by
-	// profile
-	// object key
-	private Map<String, Map<String, SNMPObject>> objects = new HashMap<>();
 	
-	public Map<String, Map<String, SNMPObject>> getObjects() {
-		return objects;
+	// the device's profile objects keyed by object name, null for an unknown device
+	public Map<String, SNMPObject> getObjects(String deviceName) {
+		CompiledProfile profile = getProfile(deviceName);
+		return profile == null ? null : profile.getObjects();
+	}
+	
+	public CompiledProfile getProfile(String deviceName) {
+		if (deviceName == null)
+			return null;
+		return deviceProfiles.get(deviceName);
 	}
 	
 	public void updateDevice(Device device) {
@@ -77,38 +103,175 @@ public class ProfileStore {
 	}
 	
 	public void removeDevice(Device device) {
-		objects.remove(device.getName());
-		commands.remove(device.getName());
+		CompiledProfile profile = deviceProfiles.remove(device.getName());
+		if (profile != null) {
+			// the compiled profile is kept for the next device of the profile, its descriptors go with its last device
+			profiles.computeIfPresent(profile.getName(), (name, compiled) -> {
+				Set<String> names = profileDevices.get(name);
+				if (names != null && names.remove(device.getName()) && names.isEmpty())
+					release(compiled);
+				return compiled;
+			});
+		}
+		driver.invalidate(device);
 	}
 	
 	public void addDevice(Device device) {
-
-		// put the device's profile resources in the commands map
-		Map<String, Map<String, List<ResourceOperation>>> deviceOperations = new HashMap<>();
-		List<ValueDescriptor> descriptors;
-		
+		addDevice(device, null);
+	}
+	
+	// the value descriptors in metadata keyed by name, fetched once and shared when many devices are added together
+	// descriptors created while adding devices are put in it too
+	public Map<String, ValueDescriptor> fetchValueDescriptors() {
+		Map<String, ValueDescriptor> descriptors = new ConcurrentHashMap<String, ValueDescriptor>();
 		try {
-			descriptors = valueDescriptorClient.valueDescriptors();
+			for (ValueDescriptor descriptor: valueDescriptorClient.valueDescriptors())
+				descriptors.put(descriptor.getName(), descriptor);
 		} catch (Exception e) {
-			descriptors = new ArrayList<ValueDescriptor>();
+			logger.error("Fetching value descriptors failed with error " + e.getMessage());
 		}
-		
-		List<ResourceOperation> ops = new ArrayList<ResourceOperation>();
-		
-		// If profile is not complete, update it
-		if (device.getProfile().getDeviceResources() == null) {
-			DeviceProfile profile = deviceProfileClient.deviceProfileForName(device.getProfile().getName());
-			device.setProfile(profile);
-			addDevice(device);
+		return descriptors;
+	}
+	
+	public DeviceProfile fetchProfile(String profileName) {
+		return deviceProfileClient.deviceProfileForName(profileName);
+	}
+	
+	// descriptors may be null, they are only fetched when the profile has to be compiled
+	// the device is registered with its profile under the profile's entry, so it cannot race the removal of another device
+	public void addDevice(Device device, Map<String, ValueDescriptor> descriptors) {
+		CompiledProfile recompiled = compileIfStale(device, descriptors);
+		CompiledProfile profile = profiles.compute(device.getProfile().getName(), (name, compiled) -> {
+			compiled = swap(compiled, recompiled);
+			Set<String> names = profileDevices.computeIfAbsent(name, n -> ConcurrentHashMap.newKeySet());
+			if (names.add(device.getName()) && names.size() == 1)
+				retain(compiled);
+			deviceProfiles.put(device.getName(), compiled);
+			return compiled;
+		});
+		device.setProfile(profile.getProfile());
+	}
+	
+	// compile the distinct profiles of a batch of devices up front, returns how many there are
+	public int compileProfiles(List<Device> devices, Map<String, ValueDescriptor> descriptors) {
+		Map<String, Device> distinct = new HashMap<String, Device>();
+		for (Device device: devices)
+			if (device.getProfile() != null)
+				distinct.putIfAbsent(device.getProfile().getName(), device);
+		for (Device device: distinct.values()) {
+			try {
+				getCompiled(device, descriptors);
+			} catch (Exception e) {
+				logger.error("Compiling profile " + device.getProfile().getName() + " failed with error " + e.getMessage());
+			}
+		}
+		return distinct.size();
+	}
+	
+	private CompiledProfile getCompiled(Device device, Map<String, ValueDescriptor> descriptors) {
+		CompiledProfile recompiled = compileIfStale(device, descriptors);
+		return profiles.compute(device.getProfile().getName(), (name, compiled) -> swap(compiled, recompiled));
+	}
+	
+	// The profile compiled afresh when the one held is missing or stale, otherwise null. Fetching and
+	// compiling call metadata, so this is done outside the profile's map entry and swapped in after.
+	private CompiledProfile compileIfStale(Device device, Map<String, ValueDescriptor> descriptors) {
+		CompiledProfile compiled = profiles.get(device.getProfile().getName());
+		if (compiled != null && compiled.isCurrent(device.getProfile()))
+			return null;
+		return compile(device, descriptors != null ? descriptors : fetchValueDescriptors());
+	}
+	
+	// called under the profile's entry, installs the recompiled profile unless a racing compile
+	// has already put in the same or a newer version
+	private CompiledProfile swap(CompiledProfile compiled, CompiledProfile recompiled) {
+		if (recompiled == null || (compiled != null && compiled.getModified() >= recompiled.getModified()))
+			return compiled != null ? compiled : recompiled;
+		install(recompiled, compiled);
+		return recompiled;
+	}
+	
+	// Compile an updated profile once and move all of its devices over to it,
+	// returns the names of the devices that were moved
+	public Set<String> updateProfile(DeviceProfile profile) {
+		CompiledProfile compiled = compile(profile, fetchValueDescriptors());
+		profiles.compute(profile.getName(), (name, previous) -> {
+			// an update may come in again for a version already installed, its descriptors are compiled afresh all the same
+			if (previous != null && previous.getModified() > compiled.getModified())
+				return previous;
+			install(compiled, previous);
+			return compiled;
+		});
+		Set<String> names = profileDevices.get(profile.getName());
+		if (names == null)
+			return Collections.emptySet();
+		return names;
+	}
+	
+	// move the devices of a recompiled profile over to it, called under the profile's entry
+	private void install(CompiledProfile compiled, CompiledProfile previous) {
+		Set<String> names = profileDevices.get(compiled.getName());
+		if (names == null || names.isEmpty())
 			return;
+		retain(compiled);
+		for (String deviceName: names)
+			deviceProfiles.replace(deviceName, compiled);
+		if (previous != null) {
+			Set<String> dropped = new HashSet<String>(previous.getBindings().keySet());
+			dropped.removeAll(compiled.getBindings().keySet());
+			release(previous.getName(), dropped);
+		}
+	}
+	
+	private void retain(CompiledProfile profile) {
+		for (ValueDescriptor descriptor: profile.getBindings().values()) {
+			descriptorProfiles.compute(descriptor.getName(), (name, users) -> {
+				if (users == null)
+					users = ConcurrentHashMap.newKeySet();
+				users.add(profile.getName());
+				valueDescriptors.put(name, descriptor);
+				return users;
+			});
+		}
+	}
+	
+	private void release(CompiledProfile profile) {
+		release(profile.getName(), profile.getBindings().keySet());
+	}
+	
+	private void release(String profileName, Set<String> descriptors) {
+		for (String descriptor: descriptors) {
+			descriptorProfiles.computeIfPresent(descriptor, (name, users) -> {
+				users.remove(profileName);
+				if (!users.isEmpty())
+					return users;
+				valueDescriptors.remove(name);
+				return null;
+			});
 		}
+	}
+	
+	private CompiledProfile compile(Device device, Map<String, ValueDescriptor> descriptors) {
+		// If profile is not complete, update it
+		DeviceProfile profile = device.getProfile();
+		if (profile.getDeviceResources() == null)
+			profile = fetchProfile(profile.getName());
+		return compile(profile, descriptors);
+	}
+	
+	private CompiledProfile compile(DeviceProfile profile, Map<String, ValueDescriptor> descriptors) {
+
+		// put the profile resources in the commands map
+		Map<String, Map<String, List<ResourceOperation>>> deviceOperations = new HashMap<>();
+		
+		List<ResourceOperation> ops = new ArrayList<ResourceOperation>();
 		
-		List<String> usedDescriptors = new ArrayList<String>();
-		for (Command command: device.getProfile().getCommands()) {
+		Set<String> usedDescriptors = new HashSet<String>();
+		for (Command command: profile.getCommands()) {
 			usedDescriptors.addAll(command.associatedValueDescriptors());
 		}
 
-		for (ProfileResource resource: device.getProfile().getResources()) {
+		for (ProfileResource resource: profile.getResources()) {
 			Map<String, List<ResourceOperation>> operations = new HashMap<String, List<ResourceOperation>>();
 			operations.put("get", resource.getGet());
 			operations.put("set", resource.getSet());
@@ -119,10 +282,10 @@ public class ProfileStore {
 				ops.addAll(resource.getSet());
 		}
 
-		// put the device's profile objects in the objects map
-		// put the device's profile objects in the commands map if no resource exists
+		// put the profile objects in the objects map
+		// put the profile objects in the commands map if no resource exists
 		Map<String, SNMPObject> deviceObjects = new HashMap<>();
-		for (DeviceObject object: device.getProfile().getDeviceResources()) {
+		for (DeviceObject object: profile.getDeviceResources()) {
 			SNMPObject SNMPObject = new SNMPObject(object);
 			
 			PropertyValue value = object.getProperties().getValue();
@@ -154,28 +317,33 @@ public class ProfileStore {
 				deviceOperations.put(object.getName().toLowerCase(),operations);
 			}
 		}
-
-		objects.put(device.getName(), deviceObjects);
-		commands.put(device.getName(), deviceOperations);
 		
-		// Create a value descriptor for each parameter using its underlying object
+		// Bind each parameter to its value descriptor, the used ones that neither metadata nor
+		// another profile has yet are created together once the whole profile has been read
+		Map<String, ValueDescriptor> profileBindings = new HashMap<String, ValueDescriptor>();
+		Map<String, DeviceObject> missing = new LinkedHashMap<String, DeviceObject>();
 		for (ResourceOperation op: ops) {
-			ValueDescriptor descriptor = descriptors.stream().filter(d -> d.getName().equals(op.getParameter())).findAny().orElse(null); 
-		
-			if (descriptor == null) {
-				if (!usedDescriptors.contains(op.getParameter())) continue;
-				DeviceObject object = device.getProfile().getDeviceResources().stream().filter(
-						obj -> obj.getName().equals(op.getObject())).findAny().orElse(null);
-				
-				descriptor = createDescriptor(op.getParameter(), object, device);
-			}
+			String parameter = op.getParameter();
+			ValueDescriptor descriptor = descriptors.get(parameter);
+			if (descriptor == null)
+				descriptor = valueDescriptors.get(parameter);
 			
-			valueDescriptors.add(descriptor);
-			descriptors.add(descriptor);
+			if (descriptor != null)
+				profileBindings.put(descriptor.getName(), descriptor);
+			else if (usedDescriptors.contains(parameter) && !missing.containsKey(parameter))
+				missing.put(parameter, profile.getDeviceResources().stream().filter(
+						obj -> obj.getName().equals(op.getObject())).findAny().orElse(null));
 		}
+		for (Map.Entry<String, DeviceObject> entry: missing.entrySet()) {
+			ValueDescriptor descriptor = createDescriptor(entry.getKey(), entry.getValue());
+			descriptors.putIfAbsent(descriptor.getName(), descriptor);
+			profileBindings.put(descriptor.getName(), descriptor);
+		}
+		logger.info("Compiled profile " + profile.getName() + " with " + deviceObjects.size() + " objects");
+		return new CompiledProfile(profile, deviceObjects, deviceOperations, profileBindings);
 	}
 
-	private ValueDescriptor createDescriptor(String name, DeviceObject object, Device device) {
+	private ValueDescriptor createDescriptor(String name, DeviceObject object) {
 		PropertyValue value = object.getProperties().getValue();
 		Units units = object.getProperties().getUnits();
 		ValueDescriptor descriptor = new ValueDescriptor(name,value.getMinimum(),
@@ -184,12 +352,34 @@ public class ProfileStore {
 		try {
 			descriptor.setId(valueDescriptorClient.add(descriptor));
 		} catch (Exception e) {
+			// metadata refuses a name it already has, another service instance may have added it since the listing
+			try {
+				ValueDescriptor existing = valueDescriptorClient.valueDescriptorByName(name);
+				if (existing != null)
+					return existing;
+			} catch (Exception f) {
+				logger.debug("Looking up value descriptor " + name + " failed with error " + f.getMessage());
+			}
 			logger.error("Adding Value descriptor: " + descriptor.getName() + " failed with error " + e.getMessage());
 		}
 		return descriptor;
 	}
 
 	public List<ValueDescriptor> getValueDescriptors() {
-		return valueDescriptors;
+		return new ArrayList<ValueDescriptor>(valueDescriptors.values());
+	}
+	
+	public ValueDescriptor getValueDescriptor(String name) {
+		if (name == null)
+			return null;
+		return valueDescriptors.get(name);
+	}
+	
+	// the value descriptor a parameter of one of the device's resource operations reports as, or null
+	public ValueDescriptor getValueDescriptor(String deviceName, String parameter) {
+		CompiledProfile profile = getProfile(deviceName);
+		if (profile == null || parameter == null)
+			return null;
+		return profile.getBindings().get(parameter);
 	}
 }
@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright 2016-2017 Dell Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @microservice:  device-snmp
+ * @author: Anantha Boyapalle, Dell
+ * @version: 1.0.0
+ *******************************************************************************/
+package org.edgexfoundry.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.edgexfoundry.domain.ResponseObject;
+
+// Fixed capacity history of one object's readings, the newest overwriting the oldest once full.
+// Numeric readings are kept in primitive arrays, strings only for values that would not
+// come back unchanged from a long or a double.
+public class ReadingBuffer {
+	
+	private static final byte LONG = 0;
+	private static final byte DOUBLE = 1;
+	private static final byte TEXT = 2;
+	
+	private final String name;
+	private final int capacity;
+	private final long[] origins;
+	// a long, or the bits of a double, as given by the slot's kind
+	private final long[] values;
+	private final byte[] kinds;
+	private String[] text;
+	// slot of the next write
+	private int next;
+	private int size;
+	
+	public ReadingBuffer(String name, int capacity) {
+		this.name = name;
+		this.capacity = Math.max(capacity, 1);
+		origins = new long[this.capacity];
+		values = new long[this.capacity];
+		kinds = new byte[this.capacity];
+	}
+	
+	public synchronized void add(long origin, String value) {
+		int slot = next;
+		if (text != null)
+			text[slot] = null;
+		
+		kinds[slot] = store(slot, value);
+		origins[slot] = origin;
+		
+		next = (next + 1) % capacity;
+		if (size < capacity)
+			size++;
+	}
+	
+	public synchronized ResponseObject latest() {
+		if (size == 0)
+			return null;
+		return get(0);
+	}
+	
+	// the newest n readings, newest first
+	public synchronized List<ResponseObject> last(int n) {
+		int count = Math.min(Math.max(n, 0), size);
+		List<ResponseObject> readings = new ArrayList<ResponseObject>(count);
+		for (int age = 0; age < count; age++)
+			readings.add(get(age));
+		return readings;
+	}
+	
+	// the readings taken at or after origin, newest first
+	public synchronized List<ResponseObject> since(long origin) {
+		List<ResponseObject> readings = new ArrayList<ResponseObject>();
+		for (int age = 0; age < size; age++) {
+			int slot = slot(age);
+			if (origins[slot] < origin)
+				break;
+			readings.add(get(age));
+		}
+		return readings;
+	}
+	
+	public synchronized int size() {
+		return size;
+	}
+	
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	// age 0 is the newest reading
+	private int slot(int age) {
+		return (next - 1 - age + 2 * capacity) % capacity;
+	}
+	
+	private ResponseObject get(int age) {
+		int slot = slot(age);
+		String value;
+		if (kinds[slot] == LONG)
+			value = Long.toString(values[slot]);
+		else if (kinds[slot] == DOUBLE)
+			value = Double.toString(Double.longBitsToDouble(values[slot]));
+		else
+			value = text[slot];
+		ResponseObject reading = new ResponseObject(name, value);
+		reading.setOrigin(origins[slot]);
+		return reading;
+	}
+	
+	// writes the value into the slot as a long or the bits of a double when it would come back
+	// unchanged from one, otherwise as text, and answers the kind stored
+	private byte store(int slot, String value) {
+		if (parseLong(value, slot))
+			return LONG;
+		if (parseDouble(value, slot))
+			return DOUBLE;
+		if (text == null)
+			text = new String[capacity];
+		text[slot] = value;
+		return TEXT;
+	}
+	
+	// only the form Long.toString gives, so no sign, leading zeros or negative zero
+	private boolean parseLong(String value, int slot) {
+		if (value == null)
+			return false;
+		int length = value.length();
+		boolean negative = length > 0 && value.charAt(0) == '-';
+		int start = negative ? 1 : 0;
+		if (length == start || length - start > 19)
+			return false;
+		if (value.charAt(start) == '0' && (negative || length - start > 1))
+			return false;
+		// accumulated negative so Long.MIN_VALUE fits
+		long parsed = 0;
+		for (int i = start; i < length; i++) {
+			int digit = value.charAt(i) - '0';
+			if (digit < 0 || digit > 9 || parsed < (Long.MIN_VALUE + digit) / 10)
+				return false;
+			parsed = parsed * 10 - digit;
+		}
+		if (!negative) {
+			if (parsed == Long.MIN_VALUE)
+				return false;
+			parsed = -parsed;
+		}
+		values[slot] = parsed;
+		return true;
+	}
+	
+	private boolean parseDouble(String value, int slot) {
+		if (value == null || value.isEmpty())
+			return false;
+		char first = value.charAt(0);
+		if (first != '-' && first != '.' && (first < '0' || first > '9'))
+			return false;
+		try {
+			double parsed = Double.parseDouble(value);
+			if (!Double.toString(parsed).equals(value))
+				return false;
+			values[slot] = Double.doubleToRawLongBits(parsed);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Copyright 2016-2017 Dell Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @microservice:  device-snmp
+ * @author: Anantha Boyapalle, Dell
+ * @version: 1.0.0
+ *******************************************************************************/
+package org.edgexfoundry.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.edgexfoundry.domain.meta.ProvisionWatcher;
+import org.edgexfoundry.support.logging.client.EdgeXLogger;
+import org.edgexfoundry.support.logging.client.EdgeXLoggerFactory;
+
+// The provision watchers compiled for matching discovered devices: identifier patterns are compiled
+// once, and identifiers without regex syntax are compared as plain strings. A watcher with such an
+// identifier is indexed by its field and value, so a device is only tested against the watchers
+// its own values can match and the ones that are patterns throughout.
+// The first watcher in the store's order that matches wins, as when they were tried one by one.
+public class WatcherMatcher {
+	private final static EdgeXLogger logger = EdgeXLoggerFactory.getEdgeXLogger(WatcherMatcher.class);
+	
+	private static final Pattern REGEX_SYNTAX = Pattern.compile("[\\\\^$.|?*+()\\[\\]{}]");
+	
+	// watchers keyed by the field of their first literal identifier, then by its value
+	private final Map<String, Map<String, List<CompiledWatcher>>> literals = new HashMap<String, Map<String, List<CompiledWatcher>>>();
+	// watchers without a literal identifier, in order
+	private final List<CompiledWatcher> patterns = new ArrayList<CompiledWatcher>();
+	
+	private static class CompiledWatcher {
+		private final int order;
+		private final ProvisionWatcher watcher;
+		private final List<String> fields = new ArrayList<String>();
+		// a String for a literal identifier, otherwise the compiled Pattern
+		private final List<Object> conditions = new ArrayList<Object>();
+		
+		private CompiledWatcher(int order, ProvisionWatcher watcher) {
+			this.order = order;
+			this.watcher = watcher;
+		}
+		
+		private boolean matches(Map<String, String> device) {
+			for (int i = 0; i < fields.size(); i++) {
+				String value = device.get(fields.get(i));
+				if (value == null)
+					return false;
+				Object condition = conditions.get(i);
+				if (condition instanceof String ? !condition.equals(value) : !((Pattern) condition).matcher(value).matches())
+					return false;
+			}
+			return true;
+		}
+	}
+	
+	public WatcherMatcher(List<ProvisionWatcher> watchers) {
+		int order = 0;
+		for (ProvisionWatcher watcher: watchers) {
+			CompiledWatcher compiled = compile(order++, watcher);
+			if (compiled == null)
+				continue;
+			String field = null;
+			for (int i = 0; i < compiled.fields.size() && field == null; i++)
+				if (compiled.conditions.get(i) instanceof String)
+					field = compiled.fields.get(i);
+			if (field == null) {
+				patterns.add(compiled);
+				continue;
+			}
+			String value = (String) compiled.conditions.get(compiled.fields.indexOf(field));
+			literals.computeIfAbsent(field, f -> new HashMap<String, List<CompiledWatcher>>())
+				.computeIfAbsent(value, v -> new ArrayList<CompiledWatcher>()).add(compiled);
+		}
+	}
+	
+	// null when an identifier is not a valid pattern, the watcher can never match then
+	private CompiledWatcher compile(int order, ProvisionWatcher watcher) {
+		CompiledWatcher compiled = new CompiledWatcher(order, watcher);
+		Map<String, String> identifiers = watcher.getIdentifiers() == null ? Collections.<String, String>emptyMap() : watcher.getIdentifiers();
+		for (Map.Entry<String, String> identifier: identifiers.entrySet()) {
+			String expression = identifier.getValue() == null ? "" : identifier.getValue();
+			compiled.fields.add(identifier.getKey());
+			if (!REGEX_SYNTAX.matcher(expression).find()) {
+				compiled.conditions.add(expression);
+				continue;
+			}
+			try {
+				compiled.conditions.add(Pattern.compile(expression));
+			} catch (PatternSyntaxException e) {
+				logger.error("Provision watcher " + watcher.getName() + " identifier " + identifier.getKey() + " is not a valid pattern: " + e.getMessage());
+				return null;
+			}
+		}
+		return compiled;
+	}
+	
+	// the first watcher matching all of its identifiers against the device's fields, or null
+	public ProvisionWatcher match(Map<String, String> device) {
+		CompiledWatcher best = null;
+		for (Map.Entry<String, Map<String, List<CompiledWatcher>>> field: literals.entrySet()) {
+			String value = device.get(field.getKey());
+			List<CompiledWatcher> candidates = value == null ? null : field.getValue().get(value);
+			if (candidates == null)
+				continue;
+			for (CompiledWatcher candidate: candidates) {
+				if (best != null && candidate.order > best.order)
+					break;
+				if (candidate.matches(device)) {
+					best = candidate;
+					break;
+				}
+			}
+		}
+		for (CompiledWatcher candidate: patterns) {
+			if (best != null && candidate.order > best.order)
+				break;
+			if (candidate.matches(device)) {
+				best = candidate;
+				break;
+			}
+		}
+		return best == null ? null : best.watcher;
+	}
+}
@@ -19,8 +19,8 @@
  *******************************************************************************/
 package org.edgexfoundry.data;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Collectors;
 
 import org.edgexfoundry.controller.DeviceProfileClient;
@@ -50,11 +50,30 @@ public class WatcherStore {
 	@Autowired
 	private DeviceServiceClient serviceClient;
 	
-	private List<ProvisionWatcher> watchers = new ArrayList<ProvisionWatcher>();
+	private List<ProvisionWatcher> watchers = new CopyOnWriteArrayList<ProvisionWatcher>();
+	
+	// compiled from the watchers on first use, dropped whenever they change
+	private volatile WatcherMatcher matcher;
 
 	public List<ProvisionWatcher> getWatchers() {
 		return watchers;
 	}
+	
+	public WatcherMatcher getMatcher() {
+		WatcherMatcher current = matcher;
+		if (current != null)
+			return current;
+		synchronized (this) {
+			if (matcher == null)
+				matcher = new WatcherMatcher(watchers);
+			return matcher;
+		}
+	}
+	
+	// synchronized so a compile racing a change cannot install a stale matcher after it
+	private synchronized void invalidate() {
+		matcher = null;
+	}
 
 	public void initialize(String deviceServiceId) {
 		List<ProvisionWatcher> metaWatchers = provisionClient.provisionWatcherForService(deviceServiceId);
@@ -77,6 +96,7 @@ public class WatcherStore {
 				logger.error("Error adding new provision watcher " + watcher.getName() + " error is: " + e.getMessage());
 			}
 			watchers.add(watcher);
+			invalidate();
 		}		
 		return true;
 	}
@@ -94,8 +114,10 @@ public class WatcherStore {
 	
 	public boolean remove(ProvisionWatcher provisionWatcher) {
 		ProvisionWatcher watcher = watchers.stream().filter(w -> w.getId().equals(provisionWatcher.getId())).findAny().orElse(null);
-		if(watcher != null)
+		if(watcher != null) {
 			watchers.remove(watcher);
+			invalidate();
+		}
 		return true;
 	}
 
@@ -108,6 +130,7 @@ public class WatcherStore {
 		ProvisionWatcher watcher = watchers.stream().filter(w -> w.getId().equals(provisionWatcher.getId())).findAny().orElse(null);
 		if(watcher != null) {
 			watchers.remove(watcher);
+			invalidate();
 			return add(provisionWatcher);
 		}
 		return false;
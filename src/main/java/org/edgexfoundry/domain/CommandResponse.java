@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright 2016-2017 Dell Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @microservice:  device-snmp
+ * @author: Anantha Boyapalle, Dell
+ * @version: 1.0.0
+ *******************************************************************************/
+package org.edgexfoundry.domain;
+
+import java.util.Map;
+
+// Outcome of a command on one device of a fan-out
+public class CommandResponse {
+	
+	public static final String OK = "ok";
+	public static final String INCOMPLETE = "incomplete";
+	public static final String LOCKED = "locked";
+	public static final String FAILED = "failed";
+	public static final String TIMEOUT = "timeout";
+	
+	private String status;
+	private Map<String, String> readings;
+	private String error;
+	// time of the oldest reading when any were served from the cache
+	private Long origin;
+	
+	public CommandResponse(String status, Map<String, String> readings, String error) {
+		this.status = status;
+		this.readings = readings;
+		this.error = error;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public void setStatus(String status) {
+		this.status = status;
+	}
+
+	public Map<String, String> getReadings() {
+		return readings;
+	}
+
+	public void setReadings(Map<String, String> readings) {
+		this.readings = readings;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	public void setError(String error) {
+		this.error = error;
+	}
+
+	public Long getOrigin() {
+		return origin;
+	}
+
+	public void setOrigin(Long origin) {
+		this.origin = origin;
+	}
+
+	@Override
+	public String toString() {
+		return "CommandResponse [status=" + status + ", readings=" + readings + ", error=" + error + ", origin=" + origin + "]";
+	}
+}
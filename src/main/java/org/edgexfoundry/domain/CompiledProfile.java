@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright 2016-2017 Dell Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @microservice:  device-snmp
+ * @author: Anantha Boyapalle, Dell
+ * @version: 1.0.0
+ *******************************************************************************/
+package org.edgexfoundry.domain;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.edgexfoundry.domain.common.ValueDescriptor;
+import org.edgexfoundry.domain.meta.DeviceProfile;
+import org.edgexfoundry.domain.meta.ResourceOperation;
+
+// Everything the service derives from a device profile, built once per profile and version
+// and shared by every device of the profile. It is never changed once built, an updated
+// profile is compiled again and the devices are pointed at the new one.
+public class CompiledProfile {
+	
+	private final String name;
+	private final long modified;
+	private final DeviceProfile profile;
+	// objects with their parsed oids and transforms, keyed by object name
+	private final Map<String, SNMPObject> objects;
+	// resource operations keyed by lower case resource name, then get or set
+	private final Map<String, Map<String, List<ResourceOperation>>> commands;
+	// value descriptors the resource operation parameters report as, keyed by parameter
+	private final Map<String, ValueDescriptor> bindings;
+	
+	public CompiledProfile(DeviceProfile profile, Map<String, SNMPObject> objects,
+			Map<String, Map<String, List<ResourceOperation>>> commands, Map<String, ValueDescriptor> bindings) {
+		this.name = profile.getName();
+		this.modified = profile.getModified();
+		this.profile = profile;
+		this.objects = Collections.unmodifiableMap(new HashMap<String, SNMPObject>(objects));
+		Map<String, Map<String, List<ResourceOperation>>> resources = new HashMap<String, Map<String, List<ResourceOperation>>>();
+		for (Map.Entry<String, Map<String, List<ResourceOperation>>> command: commands.entrySet())
+			resources.put(command.getKey(), Collections.unmodifiableMap(new HashMap<String, List<ResourceOperation>>(command.getValue())));
+		this.commands = Collections.unmodifiableMap(resources);
+		this.bindings = Collections.unmodifiableMap(new HashMap<String, ValueDescriptor>(bindings));
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public long getModified() {
+		return modified;
+	}
+	
+	public DeviceProfile getProfile() {
+		return profile;
+	}
+	
+	public Map<String, SNMPObject> getObjects() {
+		return objects;
+	}
+	
+	public Map<String, Map<String, List<ResourceOperation>>> getCommands() {
+		return commands;
+	}
+	
+	public Map<String, ValueDescriptor> getBindings() {
+		return bindings;
+	}
+	
+	// whether the profile is the one this was compiled from, a profile listed without its resources is taken as current
+	public boolean isCurrent(DeviceProfile profile) {
+		return profile.getDeviceResources() == null || profile.getModified() == modified;
+	}
+	
+}
@@ -23,9 +23,12 @@ public class ResponseObject {
 
 	private String name;
 	private String value;
+	// when the reading was taken, in ms since the epoch
+	private long origin;
 	public ResponseObject(String name, String value){
 		this.name = name;
 		this.value = value;
+		this.origin = System.currentTimeMillis();
 	}
 	public String getName() {
 		return name;
@@ -39,6 +42,12 @@ public class ResponseObject {
 	public void setValue(String value) {
 		this.value = value;
 	}
+	public long getOrigin() {
+		return origin;
+	}
+	public void setOrigin(long origin) {
+		this.origin = origin;
+	}
 	@Override
 	public String toString() {
 		return "{\"" + name + "\":\"" + value + "\"}";
@@ -33,6 +33,24 @@ public class SNMPAttribute {
 	
 	private String oid;
 	private String community;
+	// the oid is the root of a table or subtree to be walked rather than a scalar
+	private Boolean table;
+	// rows requested per GETBULK when walking, overrides snmp.max.repetitions
+	private Integer maxRepetitions;
+	// readings younger than this many ms are served from the cache, overrides snmp.cache.max.age
+	private Long maxAge;
+	// SNMP syntax a set is written with, e.g. OctetString, IpAddress, Gauge32 or Counter64,
+	// defaults to the one implied by the property type
+	private String type;
+	// SNMPv3 user, when set the object is read with USM instead of the community
+	private String securityName;
+	// MD5, SHA, SHA224, SHA256, SHA384 or SHA512
+	private String authProtocol;
+	private String authPassphrase;
+	// DES, 3DES, AES128, AES192 or AES256
+	private String privProtocol;
+	private String privPassphrase;
+	private String contextName;
 	
 	public SNMPAttribute(Object attributes) {
 		try {
@@ -42,6 +60,16 @@ public class SNMPAttribute {
 			
 			this.setOid(thisObject.getOid());
 			this.setCommunity(thisObject.getCommunity());
+			this.setTable(thisObject.getTable());
+			this.setMaxRepetitions(thisObject.getMaxRepetitions());
+			this.setMaxAge(thisObject.getMaxAge());
+			this.setType(thisObject.getType());
+			this.setSecurityName(thisObject.getSecurityName());
+			this.setAuthProtocol(thisObject.getAuthProtocol());
+			this.setAuthPassphrase(thisObject.getAuthPassphrase());
+			this.setPrivProtocol(thisObject.getPrivProtocol());
+			this.setPrivPassphrase(thisObject.getPrivPassphrase());
+			this.setContextName(thisObject.getContextName());
 			
 		} catch (Exception e) {
 			logger.error("Cannot Construct SNMPAttribute: " + e.getMessage());
@@ -57,6 +85,59 @@ public class SNMPAttribute {
 	{
 		return community;
 	}
+	public Boolean getTable()
+	{
+		return table;
+	}
+	public boolean isTable()
+	{
+		return table != null && table;
+	}
+	public Integer getMaxRepetitions()
+	{
+		return maxRepetitions;
+	}
+	public Long getMaxAge()
+	{
+		return maxAge;
+	}
+	public String getType()
+	{
+		return type;
+	}
+	public String getSecurityName()
+	{
+		return securityName;
+	}
+	public String getAuthProtocol()
+	{
+		return authProtocol;
+	}
+	public String getAuthPassphrase()
+	{
+		return authPassphrase;
+	}
+	public String getPrivProtocol()
+	{
+		return privProtocol;
+	}
+	public String getPrivPassphrase()
+	{
+		return privPassphrase;
+	}
+	public String getContextName()
+	{
+		return contextName;
+	}
+	public boolean isSecure()
+	{
+		return securityName != null;
+	}
+	// objects sharing this key can go to the device in the same request
+	public String getTargetKey()
+	{
+		return isSecure() ? "usm:" + securityName + "@" + contextName : "community:" + community;
+	}
 	
 	
 	public void setOid(String OID)
@@ -67,10 +148,50 @@ public class SNMPAttribute {
 	{
 		this.community = community;
 	}
+	public void setTable(Boolean table)
+	{
+		this.table = table;
+	}
+	public void setMaxRepetitions(Integer maxRepetitions)
+	{
+		this.maxRepetitions = maxRepetitions;
+	}
+	public void setMaxAge(Long maxAge)
+	{
+		this.maxAge = maxAge;
+	}
+	public void setType(String type)
+	{
+		this.type = type;
+	}
+	public void setSecurityName(String securityName)
+	{
+		this.securityName = securityName;
+	}
+	public void setAuthProtocol(String authProtocol)
+	{
+		this.authProtocol = authProtocol;
+	}
+	public void setAuthPassphrase(String authPassphrase)
+	{
+		this.authPassphrase = authPassphrase;
+	}
+	public void setPrivProtocol(String privProtocol)
+	{
+		this.privProtocol = privProtocol;
+	}
+	public void setPrivPassphrase(String privPassphrase)
+	{
+		this.privPassphrase = privPassphrase;
+	}
+	public void setContextName(String contextName)
+	{
+		this.contextName = contextName;
+	}
 	
 	public String toString()
 	{
-		return "OID:" + oid + ":community:" + community;
+		return "OID:" + oid + (isSecure() ? ":user:" + securityName : ":community:" + community) + (isTable() ? ":table" : "");
 	}
 
 }
@@ -32,8 +32,8 @@ public class SNMPDevice extends Device {
 	public SNMPDevice(Device device) {
 		this.setAdminState(device.getAdminState());
 		this.setAddressable(device.getAddressable());
+		// the profile is shared with the other devices of the profile, the SNMP copy is only made when asked for
 		this.setProfile(device.getProfile());
-		this.setSNMPProfile(new SNMPDeviceProfile(device.getProfile()));
 		this.setCreated(device.getCreated());
 		this.setDescription(device.getDescription());
 		this.setId(device.getId());
@@ -21,10 +21,16 @@ package org.edgexfoundry.domain;
 
 import org.edgexfoundry.domain.SNMPAttribute;
 import org.edgexfoundry.domain.meta.DeviceObject;
+import org.snmp4j.smi.OID;
 
 public class SNMPObject extends DeviceObject {
 
 	private SNMPAttribute attributes;
+	
+	// parsed once when the profile is loaded rather than on every request
+	private OID oid;
+	private ValueTransform valueTransform;
+	private VariableEncoder encoder;
 
 	public SNMPObject(DeviceObject object) {
 		this.setName(object.getName());
@@ -41,6 +47,25 @@ public class SNMPObject extends DeviceObject {
 	
 	public void setAttributes(SNMPAttribute attributes) {
 		this.attributes = attributes;
+		this.oid = (attributes != null && attributes.getOid() != null) ? new OID(attributes.getOid()) : null;
+		this.encoder = attributes != null ? VariableEncoder.forSyntax(attributes.getType()) : null;
+		if (encoder == null && getProperties() != null && getProperties().getValue() != null)
+			encoder = VariableEncoder.forPropertyType(getProperties().getValue().getType());
+	}
+	
+	public OID getOid() {
+		return oid;
+	}
+	
+	// null when the object has no syntax a set could be written with
+	public VariableEncoder getEncoder() {
+		return encoder;
+	}
+	
+	public ValueTransform getValueTransform() {
+		if (valueTransform == null)
+			valueTransform = new ValueTransform(getProperties().getValue());
+		return valueTransform;
 	}
 
 	@Override
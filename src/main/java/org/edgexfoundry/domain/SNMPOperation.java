@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright 2016-2017 Dell Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @microservice:  device-snmp
+ * @author: Anantha Boyapalle, Dell
+ * @version: 1.0.0
+ *******************************************************************************/
+package org.edgexfoundry.domain;
+
+import org.edgexfoundry.domain.meta.ResourceOperation;
+
+// A resolved resource operation waiting to be sent to the device
+public class SNMPOperation {
+
+	private ResourceOperation operation;
+	private SNMPObject object;
+	private String value;
+
+	public SNMPOperation(ResourceOperation operation, SNMPObject object, String value) {
+		this.operation = operation;
+		this.object = object;
+		this.value = value;
+	}
+
+	public ResourceOperation getOperation() {
+		return operation;
+	}
+
+	public SNMPObject getObject() {
+		return object;
+	}
+
+	public String getValue() {
+		return value;
+	}
+
+	@Override
+	public String toString() {
+		return "SNMPOperation [operation=" + operation.getOperation() + ", object=" + object.getName() + ", value=" + value + "]";
+	}
+
+}
@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright 2016-2017 Dell Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @microservice:  device-snmp
+ * @author: Anantha Boyapalle, Dell
+ * @version: 1.0.0
+ *******************************************************************************/
+package org.edgexfoundry.domain;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.snmp4j.smi.Counter64;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.UnsignedInteger32;
+import org.snmp4j.smi.Variable;
+
+import com.google.gson.JsonObject;
+
+// A value read from or written to a device as it came off the wire: a single variable,
+// the rows of a walked table keyed by row index, or plain text for agent error messages.
+// It is only turned into a string once it has been transformed for core data.
+public class SNMPValue {
+	
+	private final Variable variable;
+	private final Map<String, Variable> rows;
+	private final String text;
+	
+	private SNMPValue(Variable variable, Map<String, Variable> rows, String text) {
+		this.variable = variable;
+		this.rows = rows;
+		this.text = text;
+	}
+	
+	public static SNMPValue of(Variable variable) {
+		return new SNMPValue(variable, null, null);
+	}
+	
+	public static SNMPValue table(Map<String, Variable> rows) {
+		return new SNMPValue(null, Collections.unmodifiableMap(rows), null);
+	}
+	
+	public static SNMPValue text(String text) {
+		return new SNMPValue(null, null, text);
+	}
+	
+	public Variable getVariable() {
+		return variable;
+	}
+	
+	public Map<String, Variable> getRows() {
+		return rows;
+	}
+	
+	public String getText() {
+		return text;
+	}
+	
+	public boolean isTable() {
+		return rows != null;
+	}
+	
+	public boolean isEmpty() {
+		if (variable != null)
+			return false;
+		if (rows != null)
+			return false;
+		return text == null || text.isEmpty();
+	}
+	
+	// integer syntaxes whose value can be taken as a long without parsing
+	public static boolean isInteger(Variable variable) {
+		return variable instanceof Integer32 || variable instanceof UnsignedInteger32 || variable instanceof Counter64;
+	}
+	
+	// Counter64 is unsigned, its long is the raw 64 bits
+	public static boolean isUnsigned64(Variable variable) {
+		return variable instanceof Counter64;
+	}
+	
+	@Override
+	public String toString() {
+		if (variable != null)
+			return variable.toString();
+		if (rows != null) {
+			JsonObject json = new JsonObject();
+			for (Map.Entry<String, Variable> row: rows.entrySet())
+				json.addProperty(row.getKey(), row.getValue().toString());
+			return json.toString();
+		}
+		return text;
+	}
+}
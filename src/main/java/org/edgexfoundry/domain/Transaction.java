@@ -20,47 +20,124 @@
 package org.edgexfoundry.domain;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Transaction {	
 	private String transactionId;
-	private List<ResponseObject> responses;
-	private Map<String, Boolean> opIds;
-	private Boolean finished = true;
+	private Queue<ResponseObject> responses;
+	// why operations came back without their readings
+	private Queue<String> failures;
+	private AtomicInteger opIds;
+	// ids of the operations not yet finished, a duplicate or unknown finish is ignored
+	private Set<Integer> outstanding;
+	// outstanding operations, plus one held by the dispatching thread until it has registered them all
+	private AtomicInteger pending;
+	private CompletableFuture<List<ResponseObject>> completion;
+	// run when the transaction is abandoned, to cancel whatever is still outstanding
+	private Queue<Runnable> cancellations;
+	private volatile boolean cancelled;
+	private long created;
+	// time of the latest response from the device, a command's deadline counts from it
+	private volatile long progressed;
 	
 	public Transaction() {
 		setTransactionId(UUID.randomUUID().toString());
-		setResponses(new ArrayList<ResponseObject>());
-		opIds = new HashMap<String, Boolean>();
-	}
-	
-	private void setResponses(List<ResponseObject> responses) {
-		this.responses = responses;
+		created = System.currentTimeMillis();
+		progressed = created;
+		cancellations = new ConcurrentLinkedQueue<Runnable>();
+		responses = new ConcurrentLinkedQueue<ResponseObject>();
+		failures = new ConcurrentLinkedQueue<String>();
+		opIds = new AtomicInteger();
+		outstanding = ConcurrentHashMap.newKeySet();
+		pending = new AtomicInteger(1);
+		completion = new CompletableFuture<List<ResponseObject>>();
 	}
 
 	private void setTransactionId(String transactionId) {
 		this.transactionId = transactionId;
 	}
 
-	public String newOpId() {
-		String opId = UUID.randomUUID().toString();
-		opIds.put(opId, false);
-		finished = false;
+	public int newOpId() {
+		int opId = opIds.incrementAndGet();
+		pending.incrementAndGet();
+		outstanding.add(opId);
 		return opId;
 	}
 	
-	public void finishOp(String opId, List<ResponseObject> responses) {
+	public void finishOp(int opId, List<ResponseObject> responses) {
+		if (!outstanding.remove(opId))
+			return;
 		addResponses(responses);
-		opIds.put(opId, true);
-		if (!opIds.values().contains(false))
-			finished = true;
+		release();
+	}
+	
+	// finish an operation that got none or only some of its readings
+	public void failOp(int opId, List<ResponseObject> responses, String failure) {
+		if (!outstanding.remove(opId))
+			return;
+		addResponses(responses);
+		failures.add(failure);
+		release();
+	}
+	
+	// called once all operations have been registered
+	public void dispatched() {
+		release();
+	}
+	
+	private void release() {
+		if (pending.decrementAndGet() == 0)
+			completion.complete(getResponses());
 	}
 	
 	public Boolean isFinished() {
-		return finished;
+		return completion.isDone();
+	}
+	
+	// registered after the transaction was cancelled, the cancellation runs right away
+	public void onCancel(Runnable cancellation) {
+		cancellations.add(cancellation);
+		if (cancelled)
+			runCancellations();
+	}
+	
+	public void cancel() {
+		cancelled = true;
+		runCancellations();
+	}
+	
+	private void runCancellations() {
+		Runnable cancellation;
+		while ((cancellation = cancellations.poll()) != null)
+			cancellation.run();
+	}
+	
+	public Boolean isCancelled() {
+		return cancelled;
+	}
+	
+	public long getCreated() {
+		return created;
+	}
+	
+	// called as each request of the transaction is answered
+	public void progressed() {
+		progressed = System.currentTimeMillis();
+	}
+	
+	public long getProgressed() {
+		return progressed;
+	}
+	
+	public CompletableFuture<List<ResponseObject>> getCompletion() {
+		return completion;
 	}
 
 	public String getTransactionId() {
@@ -68,7 +145,11 @@ public class Transaction {
 	}
 
 	public List<ResponseObject> getResponses() {
-		return responses;
+		return new ArrayList<ResponseObject>(responses);
+	}
+
+	public List<String> getFailures() {
+		return new ArrayList<String>(failures);
 	}
 
 	private void addResponses(List<ResponseObject> responses) {
@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * Copyright 2016-2017 Dell Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @microservice:  device-snmp
+ * @author: Anantha Boyapalle, Dell
+ * @version: 1.0.0
+ *******************************************************************************/
+package org.edgexfoundry.domain;
+
+import java.math.BigInteger;
+
+import org.edgexfoundry.domain.meta.PropertyValue;
+
+// The transform settings of a PropertyValue worked out once, with the mask and the
+// sign complement also kept as longs when they fit, so readings can skip BigInteger
+public class ValueTransform {
+	
+	private final boolean numeric;
+	private final boolean floating;
+	private final boolean lsbSet;
+	private final boolean lsb;
+	// bytes per word
+	private final int word;
+	private final BigInteger mask;
+	private final boolean masked;
+	private final boolean longMask;
+	private final long maskLong;
+	private final int shift;
+	private final boolean signed;
+	// hex digits in the value, the sign bit is the top bit of the last one
+	private final int size;
+	private final BigInteger complement;
+	private final boolean longComplement;
+	private final long complementLong;
+	private final boolean based;
+	private final double base;
+	private final double scale;
+	private final double offset;
+	
+	public ValueTransform(PropertyValue value) {
+		String type = value.getType() == null ? "" : value.getType().toLowerCase();
+		floating = type.equals("f") || type.equals("float");
+		numeric = floating || type.equals("i") || type.equals("integer");
+		lsbSet = value.getLSB() != null;
+		lsb = lsbSet && value.LSB();
+		
+		if (!numeric || !lsbSet) {
+			word = 1;
+			mask = BigInteger.ZERO;
+			masked = false;
+			longMask = true;
+			maskLong = 0;
+			shift = 0;
+			signed = false;
+			size = 0;
+			complement = BigInteger.ZERO;
+			longComplement = true;
+			complementLong = 0;
+		} else {
+			word = value.word();
+			mask = value.mask();
+			masked = !mask.equals(BigInteger.ZERO);
+			longMask = mask.signum() >= 0 && mask.bitLength() < 64;
+			maskLong = mask.longValue();
+			shift = value.shift();
+			signed = Boolean.TRUE.equals(value.getSigned());
+			size = value.size();
+			complement = BigInteger.ONE.shiftLeft(size * 4).subtract(BigInteger.ONE);
+			// a 64 bit complement is -1 as a long, the wraparound subtraction gives the BigInteger result
+			longComplement = size * 4 <= 64;
+			complementLong = complement.longValue();
+		}
+		
+		if (numeric) {
+			based = !value.base().equals(0);
+			base = based ? value.base().doubleValue() : 0;
+			scale = value.scale();
+			offset = value.offset();
+		} else {
+			based = false;
+			base = 0;
+			scale = 1;
+			offset = 0;
+		}
+	}
+
+	public boolean isNumeric() {
+		return numeric;
+	}
+
+	public boolean isFloating() {
+		return floating;
+	}
+
+	public boolean isLsbSet() {
+		return lsbSet;
+	}
+
+	public boolean isLsb() {
+		return lsb;
+	}
+
+	public int getWord() {
+		return word;
+	}
+
+	public BigInteger getMask() {
+		return mask;
+	}
+
+	public boolean isMasked() {
+		return masked;
+	}
+
+	public boolean isLongMask() {
+		return longMask;
+	}
+
+	public long getMaskLong() {
+		return maskLong;
+	}
+
+	public int getShift() {
+		return shift;
+	}
+
+	public boolean isSigned() {
+		return signed;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public BigInteger getComplement() {
+		return complement;
+	}
+
+	public boolean isLongComplement() {
+		return longComplement;
+	}
+
+	public long getComplementLong() {
+		return complementLong;
+	}
+
+	public boolean isBased() {
+		return based;
+	}
+
+	public double getBase() {
+		return base;
+	}
+
+	public double getScale() {
+		return scale;
+	}
+
+	public double getOffset() {
+		return offset;
+	}
+}
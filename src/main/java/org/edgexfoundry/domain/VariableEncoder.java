@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * Copyright 2016-2017 Dell Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @microservice:  device-snmp
+ * @author: Anantha Boyapalle, Dell
+ * @version: 1.0.0
+ *******************************************************************************/
+package org.edgexfoundry.domain;
+
+import java.nio.ByteBuffer;
+
+import org.snmp4j.smi.Counter32;
+import org.snmp4j.smi.Counter64;
+import org.snmp4j.smi.Gauge32;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.IpAddress;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.Opaque;
+import org.snmp4j.smi.TimeTicks;
+import org.snmp4j.smi.UnsignedInteger32;
+import org.snmp4j.smi.Variable;
+
+// Turns the string value of a set into the SNMP syntax the object is written with.
+// The encoder is picked once per object from the type attribute, or failing that
+// from the property type, so a write does no string comparisons.
+public enum VariableEncoder {
+	
+	INTEGER32 {
+		@Override
+		public Variable encode(String value) {
+			return new Integer32(Integer.parseInt(value.trim()));
+		}
+	},
+	UNSIGNED32 {
+		@Override
+		public Variable encode(String value) {
+			return new UnsignedInteger32(Long.parseLong(value.trim()));
+		}
+	},
+	// SNMPv2-TC TruthValue, true(1) and false(2)
+	TRUTH_VALUE {
+		@Override
+		public Variable encode(String value) {
+			String truth = value.trim();
+			if (truth.equalsIgnoreCase("true") || truth.equals("1"))
+				return new Integer32(1);
+			if (truth.equalsIgnoreCase("false") || truth.equals("2"))
+				return new Integer32(2);
+			throw new IllegalArgumentException("Not a truth value: " + value);
+		}
+	},
+	OCTET_STRING {
+		@Override
+		public Variable encode(String value) {
+			return new OctetString(value);
+		}
+	},
+	// octets given as hex, with or without a 0x prefix or colon separators
+	HEX_STRING {
+		@Override
+		public Variable encode(String value) {
+			return new OctetString(hex(value));
+		}
+	},
+	IP_ADDRESS {
+		@Override
+		public Variable encode(String value) {
+			IpAddress address = new IpAddress();
+			if (!address.parseAddress(value.trim()))
+				throw new IllegalArgumentException("Not an IP address: " + value);
+			return address;
+		}
+	},
+	GAUGE32 {
+		@Override
+		public Variable encode(String value) {
+			return new Gauge32(Long.parseLong(value.trim()));
+		}
+	},
+	COUNTER32 {
+		@Override
+		public Variable encode(String value) {
+			return new Counter32(Long.parseLong(value.trim()));
+		}
+	},
+	COUNTER64 {
+		@Override
+		public Variable encode(String value) {
+			return new Counter64(Long.parseUnsignedLong(value.trim()));
+		}
+	},
+	TIME_TICKS {
+		@Override
+		public Variable encode(String value) {
+			return new TimeTicks(Long.parseLong(value.trim()));
+		}
+	},
+	OBJECT_IDENTIFIER {
+		@Override
+		public Variable encode(String value) {
+			OID oid = new OID(value.trim());
+			if (!oid.isValid())
+				throw new IllegalArgumentException("Not an OID: " + value);
+			return oid;
+		}
+	},
+	OPAQUE {
+		@Override
+		public Variable encode(String value) {
+			return new Opaque(hex(value));
+		}
+	},
+	// the Net-SNMP opaque float, an ASN.1 float tag wrapped in an Opaque
+	OPAQUE_FLOAT {
+		@Override
+		public Variable encode(String value) {
+			return new Opaque(ByteBuffer.allocate(7).put(OPAQUE_TAG).put(FLOAT_TAG).put((byte) 4)
+				.putFloat(Float.parseFloat(value.trim())).array());
+		}
+	},
+	OPAQUE_DOUBLE {
+		@Override
+		public Variable encode(String value) {
+			return new Opaque(ByteBuffer.allocate(11).put(OPAQUE_TAG).put(DOUBLE_TAG).put((byte) 8)
+				.putDouble(Double.parseDouble(value.trim())).array());
+		}
+	};
+	
+	private static final byte OPAQUE_TAG = (byte) 0x9f;
+	private static final byte FLOAT_TAG = (byte) 0x78;
+	private static final byte DOUBLE_TAG = (byte) 0x79;
+	
+	// throws IllegalArgumentException, NumberFormatException included, when the value does not fit the syntax
+	public abstract Variable encode(String value);
+	
+	// the encoder for an SNMP syntax name from the type attribute, null when it is not known
+	public static VariableEncoder forSyntax(String syntax) {
+		if (syntax == null)
+			return null;
+		switch (syntax.replaceAll("[^A-Za-z0-9]", "").toLowerCase()) {
+			case "integer":
+			case "integer32":
+			case "int":
+				return INTEGER32;
+			case "unsigned32":
+			case "unsignedinteger32":
+				return UNSIGNED32;
+			case "truthvalue":
+				return TRUTH_VALUE;
+			case "octetstring":
+			case "string":
+				return OCTET_STRING;
+			case "hexstring":
+				return HEX_STRING;
+			case "ipaddress":
+				return IP_ADDRESS;
+			case "gauge32":
+			case "gauge":
+				return GAUGE32;
+			case "counter32":
+			case "counter":
+				return COUNTER32;
+			case "counter64":
+				return COUNTER64;
+			case "timeticks":
+				return TIME_TICKS;
+			case "oid":
+			case "objectidentifier":
+				return OBJECT_IDENTIFIER;
+			case "opaque":
+				return OPAQUE;
+			case "float":
+			case "opaquefloat":
+				return OPAQUE_FLOAT;
+			case "double":
+			case "opaquedouble":
+				return OPAQUE_DOUBLE;
+			default:
+				return null;
+		}
+	}
+	
+	// the encoder implied by a profile property type when the object has no type attribute
+	public static VariableEncoder forPropertyType(String type) {
+		if (type == null)
+			return null;
+		switch (type.toLowerCase()) {
+			case "i":
+			case "integer":
+				return INTEGER32;
+			case "f":
+			case "float":
+				return OPAQUE_FLOAT;
+			case "s":
+			case "string":
+				return OCTET_STRING;
+			case "b":
+			case "boolean":
+				return TRUTH_VALUE;
+			default:
+				return null;
+		}
+	}
+	
+	private static byte[] hex(String value) {
+		String hex = value.trim();
+		if (hex.startsWith("0x") || hex.startsWith("0X"))
+			hex = hex.substring(2);
+		hex = hex.replace(":", "").replace(" ", "");
+		if (hex.length() % 2 != 0)
+			throw new IllegalArgumentException("Odd number of hex digits: " + value);
+		byte[] octets = new byte[hex.length() / 2];
+		for (int i = 0; i < octets.length; i++)
+			octets[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		return octets;
+	}
+}
@@ -19,18 +19,38 @@
  *******************************************************************************/
 package org.edgexfoundry.handler;
 
-import java.util.HashMap;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.edgexfoundry.Initializer;
 import org.edgexfoundry.data.DeviceStore;
+import org.edgexfoundry.domain.CommandResponse;
 import org.edgexfoundry.domain.SNMPDevice;
+import org.edgexfoundry.domain.meta.Device;
 import org.edgexfoundry.exception.DeviceLockedException;
 import org.edgexfoundry.exception.ServiceLockedException;
 import org.edgexfoundry.support.logging.client.EdgeXLogger;
 import org.edgexfoundry.support.logging.client.EdgeXLoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 @Component
@@ -46,8 +66,65 @@ public class CommandHandler {
 	
 	@Autowired
 	Initializer init;
+	
+	// devices commanded at once by each /all request
+	@Value("${command.fanout.parallelism:16}")
+	private int parallelism;
+	// a device still running its command this many ms after it started is reported as timed out
+	@Value("${command.fanout.timeout:30000}")
+	private long fanoutTimeout;
+	
+	// shared by the /all requests, each keeps at most parallelism devices running on it
+	private ExecutorService fanout;
+	// fires the per-device deadlines
+	private ScheduledThreadPoolExecutor deadlines;
+	// drive streamed /all requests after the request thread has returned
+	private ExecutorService streams;
+	
+	@PostConstruct
+	public void start() {
+		AtomicInteger count = new AtomicInteger();
+		fanout = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "command-fanout-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		deadlines = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread thread = new Thread(r, "command-fanout-deadline");
+			thread.setDaemon(true);
+			return thread;
+		});
+		deadlines.setRemoveOnCancelPolicy(true);
+		AtomicInteger streamCount = new AtomicInteger();
+		streams = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "command-stream-" + streamCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	@PreDestroy
+	public void stop() {
+		if (fanout != null)
+			fanout.shutdownNow();
+		if (deadlines != null)
+			deadlines.shutdownNow();
+		if (streams != null)
+			streams.shutdownNow();
+	}
+	
+	// the longest an /all request can take, its devices run in rounds of parallelism each with its own deadline
+	public long getFanoutTimeout() {
+		int rounds = (devices.getDevices().size() + Math.max(parallelism, 1) - 1) / Math.max(parallelism, 1);
+		return fanoutTimeout * Math.max(rounds, 1);
+	}
 
-	public Map<String,String> getResponse(String deviceId, String cmd, String arguments) {
+	public CommandResponse getResponse(String deviceId, String cmd, String arguments) {
+		return getResponse(deviceId, cmd, arguments, null);
+	}
+
+	// maxAge in ms, readings younger than this may be served from the cache
+	public CommandResponse getResponse(String deviceId, String cmd, String arguments, Long maxAge) {
 		if (init.isServiceLocked()) {
 			logger.error("GET request cmd: " + cmd + " with device service locked on:  " + deviceId);
 			throw new ServiceLockedException();
@@ -57,25 +134,127 @@ public class CommandHandler {
 			throw new DeviceLockedException(deviceId);
 		}
 		SNMPDevice device = devices.getSNMPDeviceById(deviceId);
-		return SNMP.executeCommand(device, cmd, arguments);
+		return SNMP.executeCommand(device, cmd, arguments, maxAge);
 	}
 
-	public Map<String,String> getResponses(String cmd, String arguments) {
-		Map<String,String> responses = new HashMap<String,String>();
-		
+	public Map<String,CommandResponse> getResponses(String cmd, String arguments) {
+		return getResponses(cmd, arguments, null);
+	}
+
+	// answers with each device's own outcome keyed by device name
+	public Map<String,CommandResponse> getResponses(String cmd, String arguments, Long maxAge) {
+		checkServiceLock(cmd);
+		Map<String,CommandResponse> responses = new TreeMap<String,CommandResponse>();
+		forEachResponse(cmd, arguments, maxAge, responses::put);
+		return responses;
+	}
+
+	// hands each device's outcome to the sink as soon as it is known, from a background thread,
+	// then calls done with null or the failure that ended the stream
+	public void streamResponses(String cmd, String arguments, Long maxAge, BiConsumer<String,CommandResponse> sink, Consumer<Throwable> done) {
+		checkServiceLock(cmd);
+		streams.execute(() -> {
+			try {
+				forEachResponse(cmd, arguments, maxAge, sink);
+				done.accept(null);
+			} catch (Exception e) {
+				done.accept(e);
+			}
+		});
+	}
+	
+	private void checkServiceLock(String cmd) {
 		if (init.isServiceLocked()) {
 			logger.error("GET request cmd: " + cmd + " with device service locked ");
 			throw new ServiceLockedException();
 		}
-		
-		for (String deviceId: devices.getDevices().entrySet().stream().map(d -> d.getValue().getId()).collect(Collectors.toList())) {
-			if (devices.isDeviceLocked(deviceId)) {
+	}
+
+	// runs the command on every device, at most command.fanout.parallelism at a time for this request,
+	// and passes the outcomes on in the order they complete, one at a time
+	private void forEachResponse(String cmd, String arguments, Long maxAge, BiConsumer<String,CommandResponse> sink) {
+		Queue<Device> waiting = new ConcurrentLinkedQueue<Device>();
+		for (Device d: devices.getDevices().values()) {
+			if (devices.isDeviceLocked(d.getId())) {
+				sink.accept(d.getName(), new CommandResponse(CommandResponse.LOCKED, null, null));
 				continue;
 			}
-			SNMPDevice device = devices.getSNMPDeviceById(deviceId);
-			responses.putAll(SNMP.executeCommand(device, cmd, arguments));
+			waiting.add(d);
+		}
+		
+		CountDownLatch remaining = new CountDownLatch(waiting.size());
+		BiConsumer<String,CommandResponse> done = (deviceName, response) -> {
+			if (response != null) {
+				synchronized (remaining) {
+					sink.accept(deviceName, response);
+				}
+			}
+			remaining.countDown();
+		};
+		for (int i = Math.min(Math.max(parallelism, 1), waiting.size()); i > 0; i--)
+			runNext(waiting, cmd, arguments, maxAge, done);
+		try {
+			remaining.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	// start the next waiting device, its deadline counting from when its command starts rather than from
+	// the request, and start the one after as soon as it is done or has timed out
+	private void runNext(Queue<Device> waiting, String cmd, String arguments, Long maxAge, BiConsumer<String,CommandResponse> done) {
+		Device d;
+		SNMPDevice device = null;
+		while ((d = waiting.poll()) != null && (device = devices.getSNMPDeviceById(d.getId())) == null)
+			// gone since the request started
+			done.accept(d.getName(), null);
+		if (d == null)
+			return;
+		
+		String deviceName = d.getName();
+		SNMPDevice target = device;
+		AtomicBoolean reported = new AtomicBoolean(false);
+		AtomicReference<ScheduledFuture<?>> deadline = new AtomicReference<ScheduledFuture<?>>();
+		Consumer<CommandResponse> report = response -> {
+			if (!reported.compareAndSet(false, true))
+				return;
+			ScheduledFuture<?> timer = deadline.get();
+			if (timer != null)
+				timer.cancel(false);
+			done.accept(deviceName, response);
+			runNext(waiting, cmd, arguments, maxAge, done);
+		};
+		
+		Future<?> task;
+		try {
+			task = fanout.submit(() -> report.accept(execute(target, cmd, arguments, maxAge)));
+		} catch (RejectedExecutionException e) {
+			report.accept(new CommandResponse(CommandResponse.FAILED, null, "Command service stopping"));
+			return;
+		}
+		deadline.set(deadlines.schedule(() -> {
+			if (reported.get())
+				return;
+			logger.error("Command timed out for device " + deviceName);
+			// interrupting the command cancels its outstanding requests
+			task.cancel(true);
+			report.accept(new CommandResponse(CommandResponse.TIMEOUT, null, null));
+		}, fanoutTimeout, TimeUnit.MILLISECONDS));
+		// finished before its deadline was set
+		if (reported.get())
+			deadline.get().cancel(false);
+	}
+	
+	private CommandResponse execute(SNMPDevice device, String cmd, String arguments, Long maxAge) {
+		try {
+			CommandResponse response = SNMP.executeCommand(device, cmd, arguments, maxAge);
+			if (response == null)
+				return new CommandResponse(CommandResponse.FAILED, null, "Command interrupted");
+			return response;
+		} catch (Exception e) {
+			logger.error("Command failed for device " + device.getName() + ": " + e);
+			return new CommandResponse(CommandResponse.FAILED, null, String.valueOf(e.getMessage()));
 		}
-		return responses;
 	}
 
 }
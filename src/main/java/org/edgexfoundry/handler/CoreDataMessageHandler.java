@@ -21,14 +21,28 @@ package org.edgexfoundry.handler;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.edgexfoundry.controller.DeviceClient;
 import org.edgexfoundry.controller.EventClient;
 import org.edgexfoundry.data.DeviceStore;
+import org.edgexfoundry.data.EventSpool;
+import org.edgexfoundry.data.EventSpool.SpooledEvent;
 import org.edgexfoundry.data.ProfileStore;
 import org.edgexfoundry.domain.ResponseObject;
 import org.edgexfoundry.domain.SNMPObject;
@@ -56,6 +70,32 @@ public class CoreDataMessageHandler {
 	private int retries;
 	@Value("${service.connect.wait}")
 	private long delay;
+	
+	// events waiting for core data, shared out between the senders' queues, beyond this the queue policy applies
+	@Value("${coredata.queue.size:10000}")
+	private int queueSize;
+	// when the queue is full: oldest drops the oldest queued event, newest drops the new one, block waits for room
+	@Value("${coredata.queue.policy:oldest}")
+	private String queuePolicy;
+	@Value("${coredata.senders:2}")
+	private int senderCount;
+	// how long a sender gathers events into one batch, and the most readings in a batch
+	@Value("${coredata.batch.window:100}")
+	private long batchWindow;
+	@Value("${coredata.batch.size:100}")
+	private int batchSize;
+	// spooled events replayed to core data per second once it is reachable again
+	@Value("${coredata.spool.replay.rate:100}")
+	private int replayRate;
+	
+	// one queue per sender, a device always goes to the same one so its events are posted in order
+	private List<BlockingQueue<Event>> queues;
+	private ExecutorService senders;
+	private ScheduledExecutorService replayer;
+	private final AtomicLong queued = new AtomicLong();
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
 
 	@Autowired
 	private DeviceClient deviceClient;
@@ -68,11 +108,16 @@ public class CoreDataMessageHandler {
 	
 	@Autowired
 	private ProfileStore profiles;
+	
+	@Autowired
+	private EventSpool spool;
 
 	private Reading buildReading(String key, String value, ValueDescriptor descriptor) {
 		Reading reading = new Reading();
 		reading.setName(descriptor.getName());
 		reading.setValue(value);
+		// readings of several polls may share an event, so each keeps its own time
+		reading.setOrigin(System.currentTimeMillis());
 		return reading;
 	}
 
@@ -82,29 +127,190 @@ public class CoreDataMessageHandler {
 		return event;
 	}
 
-	private boolean sendEvent(Event event, int attempt) {
-		if (attempt < retries) {
-			if (event != null) {
+	private boolean sendEvent(Event event) {
+		for (int attempt = 0; event != null && attempt < retries; attempt++) {
+			try {
+				eventClient.add(event);
+				return true;
+			} catch (Exception e) { // something happened trying to send to
+									// core data - likely that the service
+									// is down.
+				logger.debug("Problem sending event for " + event.getDevice()
+						+ " to core data.  Retrying (attempt " + (attempt + 1) + ")...");
 				try {
-					eventClient.add(event);
-					return true;
-				} catch (Exception e) { // something happened trying to send to
-										// core data - likely that the service
-										// is down.
-					logger.debug("Problem sending event for " + event.getDevice()
-							+ " to core data.  Retrying (attempt " + (attempt + 1) + ")...");
-					try {
-						Thread.sleep(delay);
-					} catch (InterruptedException interrupt) {
-						logger.debug("Event send delay interrupted");
-						interrupt.printStackTrace();
-					}
-					return sendEvent(event, ++attempt);
+					Thread.sleep(delay);
+				} catch (InterruptedException interrupt) {
+					logger.debug("Event send delay interrupted");
+					Thread.currentThread().interrupt();
+					return false;
 				}
 			}
 		}
 		return false;
 	}
+	
+	@PostConstruct
+	public void start() {
+		int count = Math.max(senderCount, 1);
+		queues = new ArrayList<BlockingQueue<Event>>(count);
+		for (int i = 0; i < count; i++)
+			queues.add(new ArrayBlockingQueue<Event>(Math.max(queueSize / count, 1)));
+		AtomicInteger threads = new AtomicInteger();
+		senders = Executors.newFixedThreadPool(count, r -> {
+			Thread thread = new Thread(r, "coredata-sender-" + threads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		for (BlockingQueue<Event> queue: queues)
+			senders.execute(() -> sendEvents(queue));
+		
+		if (spool.isEnabled()) {
+			replayer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "coredata-replay");
+				thread.setDaemon(true);
+				return thread;
+			});
+			replayer.scheduleWithFixedDelay(this::replay, 1, 1, TimeUnit.SECONDS);
+		}
+	}
+	
+	@PreDestroy
+	public void stop() {
+		if (senders != null)
+			senders.shutdownNow();
+		if (replayer != null)
+			replayer.shutdownNow();
+	}
+	
+	// send up to a second's worth of spooled events in order, stopping at the first core data refuses
+	private void replay() {
+		try {
+			for (int i = 0; i < replayRate; i++) {
+				SpooledEvent spooled = spool.peek();
+				if (spooled == null)
+					return;
+				eventClient.add(spooled.getEvent());
+				spool.delivered(spooled);
+				updateLastConnected(spooled.getEvent().getDevice());
+			}
+		} catch (Exception e) {
+			logger.debug("Core data still unreachable, spool replay paused: " + e.getMessage());
+		}
+	}
+	
+	private BlockingQueue<Event> queueFor(String deviceName) {
+		return queues.get(Math.floorMod(String.valueOf(deviceName).hashCode(), queues.size()));
+	}
+	
+	// queue an event for the device's sender, applying the queue policy when it is full
+	private void publish(Event event) {
+		BlockingQueue<Event> queue = queueFor(event.getDevice());
+		try {
+			if (queuePolicy.equalsIgnoreCase("block")) {
+				queue.put(event);
+			} else if (!queue.offer(event)) {
+				if (queuePolicy.equalsIgnoreCase("newest")) {
+					dropped.incrementAndGet();
+					logger.debug("Core data queue full, dropped event for " + event.getDevice());
+					return;
+				}
+				while (!queue.offer(event)) {
+					Event oldest = queue.poll();
+					if (oldest != null) {
+						dropped.incrementAndGet();
+						logger.debug("Core data queue full, dropped event for " + oldest.getDevice());
+					}
+				}
+			}
+			queued.incrementAndGet();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			dropped.incrementAndGet();
+		}
+	}
+	
+	// take the events queued within one batch window and send them as one event per device
+	private void sendEvents(BlockingQueue<Event> queue) {
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				Event event = queue.take();
+				Map<String, Event> batch = new LinkedHashMap<String, Event>();
+				int readings = merge(batch, event);
+				long end = System.currentTimeMillis() + batchWindow;
+				while (readings < batchSize) {
+					long wait = end - System.currentTimeMillis();
+					if (wait <= 0 || (event = queue.poll(wait, TimeUnit.MILLISECONDS)) == null)
+						break;
+					readings += merge(batch, event);
+				}
+				for (Event deviceEvent: batch.values())
+					send(deviceEvent);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (Exception e) {
+				logger.error("Cannot push the readings to Coredata " + e.getMessage());
+			}
+		}
+	}
+	
+	// the batch gets its own event per device, the queued events are left as they were published
+	private int merge(Map<String, Event> batch, Event event) {
+		Event deviceEvent = batch.get(event.getDevice());
+		if (deviceEvent == null) {
+			deviceEvent = buildEvent(event.getDevice(), new ArrayList<Reading>(event.getReadings()));
+			batch.put(event.getDevice(), deviceEvent);
+		} else {
+			deviceEvent.getReadings().addAll(event.getReadings());
+		}
+		return event.getReadings().size();
+	}
+	
+	private void send(Event event) {
+		String deviceName = event.getDevice();
+		if (spool.isEnabled()) {
+			// while older events wait in the spool this one queues behind them, so replay stays in order
+			if (spool.appendIfPending(event))
+				return;
+			// one attempt, the spool takes the event rather than holding the sender in retries
+			try {
+				eventClient.add(event);
+				published.incrementAndGet();
+				updateLastConnected(deviceName);
+			} catch (Exception e) {
+				logger.debug("Problem sending event for " + deviceName + " to core data, spooling it");
+				if (!spool.append(event))
+					failed.incrementAndGet();
+			}
+		} else if (sendEvent(event)) {
+			published.incrementAndGet();
+			updateLastConnected(deviceName);
+		} else {
+			failed.incrementAndGet();
+			Device device = devices.getDevice(deviceName);
+			if (device != null && device.getOperatingState().equals(OperatingState.ENABLED))
+				devices.setDeviceOpState(deviceName, OperatingState.DISABLED);
+			logger.error("Could not send event to core data for " + deviceName + ".  Check core data service");
+		}
+	}
+	
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+		int depth = 0;
+		int capacity = 0;
+		for (BlockingQueue<Event> queue: queues) {
+			depth += queue.size();
+			capacity += queue.size() + queue.remainingCapacity();
+		}
+		statistics.put("depth", depth);
+		statistics.put("capacity", capacity);
+		statistics.put("policy", queuePolicy);
+		statistics.put("queued", queued.get());
+		statistics.put("published", published.get());
+		statistics.put("dropped", dropped.get());
+		statistics.put("failed", failed.get());
+		statistics.put("spool", spool.getStatistics());
+		return statistics;
+	}
 
 	private void updateLastConnected(String deviceName) {
 		Device device = devices.getDevice(deviceName);
@@ -117,6 +323,8 @@ public class CoreDataMessageHandler {
 		}
 	}
 
+	// Returns the readings as queued for core data, not as delivered: a sender posts them later, and
+	// events it cannot deliver are counted as failed or dropped in the statistics, and logged.
 	public List<ResponseObject> sendCoreData(String deviceName, JsonObject jsonObject, Map<String, SNMPObject> objects) {
 		try{
 		
@@ -128,7 +336,7 @@ public class CoreDataMessageHandler {
 				logger.debug("jsonObject: " + jsonObject);
 				for (Entry<String, JsonElement> entry : keys) {
 					if (jsonObject.has(entry.getKey())) {						
-						ValueDescriptor descriptor = profiles.getValueDescriptors().stream().filter(d -> d.getName().equals(entry.getKey())).findAny().orElse(null);
+						ValueDescriptor descriptor = profiles.getValueDescriptor(entry.getKey());
 
 						if (descriptor != null) {
 							Reading reading = buildReading(entry.getKey(), entry.getValue().getAsString(),
@@ -140,16 +348,10 @@ public class CoreDataMessageHandler {
 						}
 					}
 				}
-				boolean success = sendEvent(buildEvent(deviceName, readings), 0);
-				if (success) {
-					updateLastConnected(deviceName);
-					return resps;
-				}
-				else {
-					if (devices.getDevice(deviceName).getOperatingState().equals(OperatingState.ENABLED))
-						devices.setDeviceOpState(deviceName, OperatingState.DISABLED);
-					logger.error("Could not send event to core data for " + deviceName + ".  Check core data service");
-				}
+				// the senders deliver the event, the driver thread does not wait on core data
+				if (!readings.isEmpty())
+					publish(buildEvent(deviceName, readings));
+				return resps;
 			} else
 				logger.debug("No profile object found for the device " + deviceName + ".  MQTT message ignored.");
 		}catch(Exception e){
@@ -24,18 +24,28 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 
 import org.edgexfoundry.data.ObjectStore;
 import org.edgexfoundry.data.ProfileStore;
+import org.edgexfoundry.domain.CommandResponse;
 import org.edgexfoundry.domain.ResponseObject;
 import org.edgexfoundry.domain.SNMPDevice;
 import org.edgexfoundry.domain.SNMPObject;
+import org.edgexfoundry.domain.SNMPOperation;
 import org.edgexfoundry.domain.ScanList;
 import org.edgexfoundry.domain.Transaction;
+import org.edgexfoundry.domain.VariableEncoder;
 import org.edgexfoundry.domain.meta.Device;
 import org.edgexfoundry.domain.meta.PropertyValue;
 import org.edgexfoundry.domain.meta.ResourceOperation;
 import org.edgexfoundry.exception.BadCommandRequestException;
+import org.edgexfoundry.exception.DeviceNotFoundException;
 import org.edgexfoundry.snmp.DeviceDiscovery;
 import org.edgexfoundry.snmp.ObjectTransform;
 import org.edgexfoundry.snmp.SNMPDriver;
@@ -43,6 +53,7 @@ import org.edgexfoundry.support.logging.client.EdgeXLogger;
 import org.edgexfoundry.support.logging.client.EdgeXLoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import com.google.gson.JsonElement;
@@ -79,7 +90,22 @@ public class SNMPHandler {
 	@Value("${snmp.device.remove.args:#{null}}")
 	private String snmpRemoveArgs;
 	
-	public Map<String, Transaction> transactions = new HashMap<String, Transaction>();
+	@Value("${snmp.timeout}")
+	private long snmpTimeout;
+	@Value("${snmp.retries}")
+	private int snmpRetries;
+	// allowance on top of the SNMP timeouts for queuing and processing a command
+	@Value("${snmp.command.grace:1000}")
+	private long commandGrace;
+	
+	// readings younger than this many ms are answered from the object cache, 0 always reads the device
+	@Value("${snmp.cache.max.age:0}")
+	private long cacheMaxAge;
+	
+	public Map<String, Transaction> transactions = new ConcurrentHashMap<String, Transaction>();
+	
+	// device reads on their way, keyed by device and objects, so concurrent commands share one round trip
+	private Map<String, CompletableFuture<List<ResponseObject>>> reads = new ConcurrentHashMap<String, CompletableFuture<List<ResponseObject>>>();
 	
 	public void initialize() {
 		if (driver != null)
@@ -98,7 +124,7 @@ public class SNMPHandler {
 		SNMPDevice SNMPDevice = new SNMPDevice(device);
 		if (snmpRemove != null && commandExists(device, snmpRemove))
 			executeCommand(SNMPDevice, snmpRemove, snmpRemoveArgs);
-		driver.disconnectDevice(device.getAddressable().getPath());
+		driver.disconnectDevice(device);
 		logger.info("Disconnected Device: " + device.getName());
 	}
 	
@@ -109,40 +135,59 @@ public class SNMPHandler {
 	}
 	
 	private boolean commandExists(Device device, String command) {
-		Map<String, Map<String, List<ResourceOperation>>> op = profiles.getCommands().get(command.toLowerCase());
-		if (op == null)
-			return false;
-		return true;
+		Map<String, Map<String, List<ResourceOperation>>> resources = profiles.getCommands(device.getName());
+		return resources != null && resources.containsKey(command.toLowerCase());
 	}
 
-	public Map<String, String> executeCommand(SNMPDevice device, String cmd, String arguments) {
-		// TODO set immediate flag to false to read from object cache of last readings
-		Boolean immediate = true;
+	public CommandResponse executeCommand(SNMPDevice device, String cmd, String arguments) {
+		return executeCommand(device, cmd, arguments, null);
+	}
+
+	// maxAge in ms overrides the resource and service cache settings for this request,
+	// the response is incomplete when the command timed out with only part of the readings
+	public CommandResponse executeCommand(SNMPDevice device, String cmd, String arguments, Long maxAge) {
 		Transaction transaction = new Transaction();
 		String transactionId = transaction.getTransactionId();
 		transactions.put(transactionId, transaction);
-		executeOperations(device, cmd, arguments, immediate, transactionId);
 		
-		synchronized (transactions) {
-			while (!transactions.get(transactionId).isFinished()) {
-				try {
-					transactions.wait();
-				} catch (InterruptedException e) {
-					// Exit quietly on break
-					return null;
-				}
-			}
+		List<ResponseObject> resp;
+		boolean incomplete = false;
+		boolean cached = false;
+		try {
+			List<SNMPOperation> requests = new ArrayList<SNMPOperation>();
+			executeOperations(device, cmd, arguments, transactionId, requests);
+			cached = dispatchOperations(device, requests, transaction, maxAge);
+			transaction.dispatched();
+			resp = await(transaction);
+		} catch (TimeoutException e) {
+			// give up on whatever is still outstanding and answer with what has arrived
+			logger.warn("Command " + cmd + " for " + device.getName() + " timed out, returning partial results");
+			transaction.cancel();
+			resp = transaction.getResponses();
+			incomplete = true;
+		} catch (InterruptedException | ExecutionException e) {
+			// Exit quietly on break
+			transaction.cancel();
+			return null;
+		} finally {
+			transactions.remove(transactionId);
 		}
-	
-		List<ResponseObject> resp = transactions.get(transactionId).getResponses();
-		transactions.remove(transactionId);
+		
 		Map<String, String> valueDescriptorMap = new HashMap<String,String>();
 		for (ResponseObject obj: resp)
 			valueDescriptorMap.put(obj.getName(), obj.getValue());
-		return valueDescriptorMap;
+		// operations that came back without readings make the response failed, or incomplete when others did not
+		List<String> failures = transaction.getFailures();
+		String status = incomplete ? CommandResponse.INCOMPLETE : CommandResponse.OK;
+		if (!failures.isEmpty())
+			status = resp.isEmpty() ? CommandResponse.FAILED : CommandResponse.INCOMPLETE;
+		CommandResponse response = new CommandResponse(status, valueDescriptorMap, failures.isEmpty() ? null : String.join("; ", failures));
+		if (cached && !resp.isEmpty())
+			response.setOrigin(resp.stream().mapToLong(ResponseObject::getOrigin).min().getAsLong());
+		return response;
 	}
 
-	private void executeOperations(SNMPDevice device, String commandName, String arguments, Boolean immediate, String transactionId) {
+	private void executeOperations(SNMPDevice device, String commandName, String arguments, String transactionId, List<SNMPOperation> requests) {
 		String method;
 		if (arguments == null) {
 			method = "get";
@@ -150,18 +195,13 @@ public class SNMPHandler {
 			method = "set";
 		}
 		
-		List<ResponseObject> resp = new ArrayList<ResponseObject>();
-		
 		String deviceName = device.getName();
-		String deviceId = device.getId();
 		// get the objects for this device
-		Map<String, SNMPObject> objects = profiles.getObjects().get(deviceName);
+		Map<String, SNMPObject> objects = profiles.getObjects(deviceName);
 		// get this device's resources map
-		Map<String, Map<String, List<ResourceOperation>>> resources = profiles.getCommands().get(deviceName);
+		Map<String, Map<String, List<ResourceOperation>>> resources = profiles.getCommands(deviceName);
 		if (resources == null) {
 			logger.error("Command requested for unknown device " + deviceName);
-			String opId = transactions.get(transactionId).newOpId();
-			completeTransaction(transactionId,opId,resp);
 			throw new BadCommandRequestException("Command requested for unknown device " + deviceName);
 		}
 		
@@ -170,8 +210,6 @@ public class SNMPHandler {
 		
 		if (resource == null || resource.get(method) == null) {
 			logger.error("Resource " + commandName + " not found");
-			String opId = transactions.get(transactionId).newOpId();
-			completeTransaction(transactionId,opId,resp);
 			throw new BadCommandRequestException("Resource " + commandName + " not found");
 		}
 		
@@ -181,7 +219,7 @@ public class SNMPHandler {
 		for (ResourceOperation operation: operations) {
 			String opResource = operation.getResource();
 			if (opResource != null) {
-				executeOperations(device, opResource, arguments, immediate, transactionId);
+				executeOperations(device, opResource, arguments, transactionId, requests);
 				continue;
 			}
 
@@ -189,8 +227,6 @@ public class SNMPHandler {
 			SNMPObject object = objects.get(objectName);
 			if (object == null) {
 				logger.error("Object " + objectName + " not found");
-				String opId = transactions.get(transactionId).newOpId();
-				completeTransaction(transactionId,opId,resp);
 				throw new BadCommandRequestException("Object " + objectName + " not found");
 			}
 			
@@ -237,31 +273,169 @@ public class SNMPHandler {
 			}
 			if (operation.getOperation().equals("set")) {
 				// prepend 0s to match the object size defined in the profile
-				while (val.length() < value.size())
-					val = "0" + val;
+				if (object.getValueTransform().isNumeric())
+					while (val.length() < value.size())
+						val = "0" + val;
+				checkSettable(object, val);
 			}
 			
 			// command operation for client processing
-			if (immediate || method.equals("set") || objectCache.get(deviceId, objectName) == null 
-					|| objectCache.get(deviceId, objectName).equals("{}")) {
-				String opId = transactions.get(transactionId).newOpId();
-				final String parameter = val;
-				new Thread(() -> driver.process(operation, device, object, parameter, transactionId, opId)).start();;
-			}			
+			requests.add(new SNMPOperation(operation, object, val));
 		}
 	}
 
-	public void completeTransaction(String transactionId, String opId, List<ResponseObject> resp) {		
-		synchronized (transactions) {
-			transactions.get(transactionId).finishOp(opId, resp);
-			transactions.notifyAll();
+	// refuse the command before anything is written when one of its values does not fit the object's SNMP syntax
+	private void checkSettable(SNMPObject object, String val) {
+		VariableEncoder encoder = object.getEncoder();
+		if (encoder == null)
+			throw new BadCommandRequestException("Object " + object.getName() + " has no SNMP type that can be set");
+		if (val == null)
+			throw new BadCommandRequestException("No value to set on " + object.getName());
+		try {
+			encoder.encode(val);
+		} catch (IllegalArgumentException e) {
+			throw new BadCommandRequestException("Value " + val + " cannot be set on " + object.getName() + " as " + encoder + ": " + e.getMessage());
+		}
+	}
+
+	// gets fresh enough in the cache are answered from it, gets already on their way to the device are joined,
+	// the remaining gets for the device are coalesced into a single driver request, and so are all the sets
+	// returns whether any of the responses came from the cache
+	private boolean dispatchOperations(SNMPDevice device, List<SNMPOperation> requests, Transaction transaction, Long maxAge) {
+		List<SNMPOperation> sets = requests.stream().filter(r -> !r.getOperation().getOperation().equals("get")).collect(Collectors.toList());
+		String transactionId = transaction.getTransactionId();
+		boolean cached = false;
+		
+		List<SNMPOperation> gets = new ArrayList<SNMPOperation>();
+		Map<String, SNMPOperation> leads = new HashMap<String, SNMPOperation>();
+		for (SNMPOperation get: requests) {
+			if (!get.getOperation().getOperation().equals("get"))
+				continue;
+			long age = getMaxAge(get, maxAge);
+			if (age > 0) {
+				List<ResponseObject> resp = objectCache.getResponses(device, get.getOperation(), System.currentTimeMillis() - age);
+				if (resp != null) {
+					transaction.finishOp(transaction.newOpId(), resp);
+					cached = true;
+					continue;
+				}
+			}
+			String key = device.getId() + objectCache.getOperationId(get.getOperation(), device);
+			CompletableFuture<List<ResponseObject>> read = reads.putIfAbsent(key, new CompletableFuture<List<ResponseObject>>());
+			if (read != null) {
+				// a joined read fails the way the device read it joined did
+				int opId = transaction.newOpId();
+				read.whenComplete((resp, error) -> {
+					if (error != null)
+						failTransaction(transactionId, opId, null, String.valueOf(error.getMessage()));
+					else
+						completeTransaction(transactionId, opId, resp);
+				});
+				continue;
+			}
+			leads.put(key, get);
+			gets.add(get);
+		}
+		
+		// in async mode the driver completes the operations from its own callbacks,
+		// otherwise each request blocks its own thread until the device answers
+		if (!gets.isEmpty()) {
+			int opId = transaction.newOpId();
+			long started = System.currentTimeMillis();
+			execute(() -> {
+				try {
+					driver.process(device, gets, transactionId, opId).whenComplete((v, error) -> shareReads(device, leads, started, error));
+				} catch (RuntimeException e) {
+					shareReads(device, leads, started, e);
+					throw e;
+				}
+			});
 		}
+		if (!sets.isEmpty()) {
+			int opId = transaction.newOpId();
+			execute(() -> driver.process(device, sets, transactionId, opId));
+		}
+		return cached;
 	}
 	
+	// hand the readings of a finished device read to the commands that joined it,
+	// or the failure when the device did not answer
+	private void shareReads(SNMPDevice device, Map<String, SNMPOperation> leads, long started, Throwable error) {
+		for (Map.Entry<String, SNMPOperation> lead: leads.entrySet()) {
+			CompletableFuture<List<ResponseObject>> read = reads.remove(lead.getKey());
+			if (read == null)
+				continue;
+			List<ResponseObject> resp = error == null ? objectCache.getResponses(device, lead.getValue().getOperation(), started) : null;
+			if (resp != null)
+				read.complete(resp);
+			else
+				read.completeExceptionally(error != null ? error
+						: new DeviceNotFoundException("No response from " + device.getName() + " for " + lead.getValue().getObject().getName()));
+		}
+	}
 	
+	private long getMaxAge(SNMPOperation operation, Long maxAge) {
+		if (maxAge != null)
+			return maxAge;
+		Long objectMaxAge = operation.getObject().getAttributes().getMaxAge();
+		return objectMaxAge != null ? objectMaxAge : cacheMaxAge;
+	}
 	
+	private void execute(Runnable request) {
+		if (driver.isAsync())
+			request.run();
+		else
+			new Thread(request).start();
+	}
+
+	// Wait for the transaction until a full round of SNMP retries plus the grace period passes without
+	// a response, so commands that need several rounds in a row, like error retries, walks over many
+	// PDUs or a read before a masked write, are not cut short while the device keeps answering
+	private List<ResponseObject> await(Transaction transaction) throws InterruptedException, ExecutionException, TimeoutException {
+		while (true) {
+			long remaining = transaction.getProgressed() + getDeadline() - System.currentTimeMillis();
+			try {
+				return transaction.getCompletion().get(Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				if (transaction.getProgressed() + getDeadline() <= System.currentTimeMillis())
+					throw e;
+			}
+		}
+	}
 	
+	// one full round of SNMP retries plus the grace period
+	private long getDeadline() {
+		return snmpTimeout * (snmpRetries + 1) + commandGrace;
+	}
+
+	public void completeTransaction(String transactionId, int opId, List<ResponseObject> resp) {
+		Transaction transaction = transactions.get(transactionId);
+		if (transaction != null)
+			transaction.finishOp(opId, resp);
+	}
 	
+	public void failTransaction(String transactionId, int opId, List<ResponseObject> resp, String failure) {
+		Transaction transaction = transactions.get(transactionId);
+		if (transaction != null)
+			transaction.failOp(opId, resp, failure);
+	}
 	
+	public Transaction getTransaction(String transactionId) {
+		return transactions.get(transactionId);
+	}
 	
+	// clean up transactions whose command thread went away without removing them
+	@Scheduled(fixedRateString = "${snmp.transaction.reaper.interval:60000}")
+	public void reapTransactions() {
+		long expired = System.currentTimeMillis() - 2 * getDeadline();
+		for (Transaction transaction: transactions.values()) {
+			if (transaction.getProgressed() > expired)
+				continue;
+			if (transactions.remove(transaction.getTransactionId()) == null)
+				continue;
+			logger.warn("Reaping orphaned transaction " + transaction.getTransactionId());
+			transaction.cancel();
+			transaction.getCompletion().cancel(false);
+		}
+	}
 }
@@ -19,9 +19,8 @@
  *******************************************************************************/
 package org.edgexfoundry.snmp;
 
+import java.util.HashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.edgexfoundry.data.DeviceStore;
 import org.edgexfoundry.data.WatcherStore;
@@ -51,45 +50,19 @@ public class DeviceDiscovery {
 	private Protocol protocol = Protocol.MAC;
 
 	private ProvisionWatcher deviceMatches(Map<String, String> device) {
-		for (ProvisionWatcher watcher: watchers.getWatchers()) {
-			Map<String, String> identifiers = watcher.getIdentifiers();
-			boolean found = true;
-			
-			for (Map.Entry<String, String> entry : identifiers.entrySet())
-			{
-				Pattern p = Pattern.compile(entry.getValue());
-				Matcher m = null;
-				String fieldValue = "";
-				fieldValue = device.get(entry.getKey());
-				m = p.matcher(fieldValue);
-				
-				if(m == null) {
-					logger.error("Identifier field " + entry.getKey() + " was not found.");
-					break;
-				}
-	
-				if(m.matches()){
-					
-					found = found && true;
-				}
-				else{
-					found = false;
-					break;
-				}
-	
-			}
-			
-			if (found) {
-				logger.debug("Matching Device " + device + " found.");
-				return watcher;
-			}
-		}
-		
-		return null;
+		ProvisionWatcher watcher = watchers.getMatcher().match(device);
+		if (watcher != null)
+			logger.debug("Matching Device " + device + " found.");
+		return watcher;
 	}
 
-	private Device deviceExists(Map<String, String> device) {
-		return devices.getMetaDevices().stream().filter(d -> device.get("address").equals(d.getAddressable().getPath())).findFirst().orElse(null);
+	// the service's devices in metadata by address, fetched once per scan rather than per scanned device
+	private Map<String, Device> metaDevicesByAddress() {
+		Map<String, Device> existing = new HashMap<String, Device>();
+		for (Device device: devices.getMetaDevices())
+			if (device.getAddressable() != null && device.getAddressable().getPath() != null)
+				existing.putIfAbsent(device.getAddressable().getPath(), device);
+		return existing;
 	}
 
 	private Device createDevice(Map<String, String> device, ProvisionWatcher watcher) {
@@ -107,16 +80,19 @@ public class DeviceDiscovery {
 	}
 	
 	private Addressable createAddressable(Map<String, String> device, String name, Addressable service) {
+		// a swept host reports the SNMP port it answered on, otherwise the service port is assumed
+		int port = device.get("port") != null ? Integer.parseInt(device.get("port")) : service.getPort();
 		Addressable addressable = new Addressable(
 				name, protocol, device.get("interface"),
-				device.get("address"), service.getPort());		
+				device.get("address"), port);		
 		return addressable;
 	}
 	
 	public void provision(ScanList availableList) {
 		if(availableList != null && availableList.getScan().size() > 0){
+			Map<String, Device> existing = metaDevicesByAddress();
 			for (Map<String,String> device : availableList.getScan()) {
-				Device matchingDevice = deviceExists(device);
+				Device matchingDevice = existing.get(device.get("address"));
 				if (matchingDevice != null) {
 					if (matchingDevice.getOperatingState().equals(OperatingState.DISABLED) || devices.getDevice(matchingDevice.getName()) == null) {
 						matchingDevice.setOperatingState(OperatingState.ENABLED);
@@ -130,6 +106,7 @@ public class DeviceDiscovery {
 					//Provision the device
 					Device newDevice = createDevice(device, watcher);
 					devices.add(newDevice);
+					existing.putIfAbsent(device.get("address"), newDevice);
 				}
 			}
 		}
@@ -22,9 +22,13 @@ package org.edgexfoundry.snmp;
 import java.math.BigInteger;
 
 import org.edgexfoundry.data.ObjectStore;
+import org.edgexfoundry.domain.SNMPValue;
+import org.edgexfoundry.domain.ValueTransform;
 import org.edgexfoundry.domain.meta.Device;
 import org.edgexfoundry.domain.meta.DeviceObject;
 import org.edgexfoundry.domain.meta.PropertyValue;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.Variable;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
@@ -48,87 +52,166 @@ public class ObjectTransform {
 		return Integer.toHexString(maskedVal).toUpperCase();
 	}
 
-	private boolean nonNumeric(PropertyValue value) {
-		if ((value.getType().toLowerCase().equals("f") || value.getType().toLowerCase().equals("float")
-			  || value.getType().toLowerCase().equals("i")
-			  || value.getType().toLowerCase().equals("integer"))) {
-			return false;
-		} else {
-			return true;
-		}
-	}
-
 	public String transform(PropertyValue value, String result) {
-		double floatValue;
+		return transform(new ValueTransform(value), result);
+	}
 
+	public String transform(ValueTransform spec, String result) {
 		// Do not perform transforms on non-numeric fields
-		if (nonNumeric(value)) {
+		if (!spec.isNumeric()) {
 			return result;
 		}
 		
-		if (value.getLSB() != null) {
-			BigInteger val = parse(value, result);
+		if (spec.isLsbSet()) {
+			int start = result.startsWith("0x") ? 2 : 0;
+			int words = (result.length() - start) / (spec.getWord() * 2);
+			return transformWords(spec, result, start, null, words);
+		}
+		return scale(spec, Float.parseFloat(result));
+	}
+	
+	// decodes straight from the variable where it can, binary octet strings by their bytes
+	// and integers by their value, without going through the string form
+	public String transform(ValueTransform spec, Variable variable) {
+		if (!spec.isNumeric()) {
+			return variable.toString();
+		}
+		
+		if (spec.isLsbSet()) {
+			// agents that answer with printable hex text such as "0A1B" are read as those digits
+			if (variable instanceof OctetString && !isHexText(((OctetString) variable).getValue())) {
+				byte[] octets = ((OctetString) variable).getValue();
+				return transformWords(spec, null, 0, octets, octets.length / spec.getWord());
+			}
+			return transform(spec, variable.toString());
+		}
+		if (SNMPValue.isInteger(variable)) {
+			long raw = variable.toLong();
+			boolean unsigned = SNMPValue.isUnsigned64(variable);
+			// an integer that is not scaled is reported exactly, a Counter64 past 2^24 would not survive a float
+			if (isIdentity(spec))
+				return unsigned ? Long.toUnsignedString(raw) : Long.toString(raw);
+			return scale(spec, unsigned ? unsignedDouble(raw) : raw);
+		}
+		return transform(spec, variable.toString());
+	}
+	
+	// hex digits only, after an optional 0x
+	private boolean isHexText(byte[] octets) {
+		int start = octets.length >= 2 && octets[0] == '0' && octets[1] == 'x' ? 2 : 0;
+		if (octets.length == start)
+			return false;
+		for (int i = start; i < octets.length; i++)
+			if (Character.digit(octets[i], 16) < 0)
+				return false;
+		return true;
+	}
+	
+	private boolean isIdentity(ValueTransform spec) {
+		return !spec.isFloating() && !spec.isBased() && spec.getScale() == 1 && spec.getOffset() == 0;
+	}
+	
+	private double unsignedDouble(long raw) {
+		if (raw >= 0)
+			return raw;
+		return new BigInteger(Long.toUnsignedString(raw)).doubleValue();
+	}
+	
+	// mask, shift and sign the words, in a long when everything fits in 64 bits
+	// the long holds the value unsigned until the sign is applied, as the BigInteger path would have it
+	private String transformWords(ValueTransform spec, String hex, int start, byte[] octets, int words) {
+		double floatValue;
+		int shift = spec.getShift();
+		if (words * spec.getWord() * 2 <= 16 && spec.isLongMask() && spec.isLongComplement() && shift >= 0 && shift < 64) {
+			long val = parseLong(spec.getWord(), spec.isLsb(), hex, start, octets, words);
 			
-			if (!value.mask().equals(BigInteger.ZERO))
-				val = val.and(value.mask()); 
+			if (spec.isMasked())
+				val = val & spec.getMaskLong();
 			
-			if (!value.shift().equals(0))
-				val = val.shiftRight(value.shift());
+			if (shift != 0)
+				val = val >>> shift;
 			
-			if (value.getSigned() && val.bitLength()==(value.size()*4)) {
-				BigInteger complement = new BigInteger(new String(new char[value.size()]).replace("\0", "F"),16);
-				val = val.subtract(complement);
+			boolean signed = false;
+			if (spec.isSigned() && 64 - Long.numberOfLeadingZeros(val) == spec.getSize() * 4) {
+				val = val - spec.getComplementLong();
+				signed = true;
 			}
 			
-			if (!objectCache.getTransformData()) {
-				int intValue = val.intValue();
-				return String.valueOf(intValue);
-			}
+			if (!objectCache.getTransformData())
+				return String.valueOf((int) val);
 			
-			floatValue = val.doubleValue();
+			floatValue = signed ? val : unsignedDouble(val);
 		} else {
-			floatValue = Float.parseFloat(result);
+			BigInteger val = parseBig(spec.getWord(), spec.isLsb(), hex, start, octets, words);
+			
+			if (spec.isMasked())
+				val = val.and(spec.getMask()); 
+			
+			if (shift != 0)
+				val = val.shiftRight(shift);
+			
+			if (spec.isSigned() && val.bitLength() == spec.getSize() * 4)
+				val = val.subtract(spec.getComplement());
+			
+			if (!objectCache.getTransformData())
+				return String.valueOf(val.intValue());
+			
+			floatValue = val.doubleValue();
 		}
+		return scale(spec, floatValue);
+	}
+	
+	private String scale(ValueTransform spec, double floatValue) {
+		if (spec.isBased())
+			floatValue = Math.pow(spec.getBase(), floatValue);
+		floatValue = floatValue * spec.getScale();
+		floatValue = floatValue + spec.getOffset();
 		
-		if (!value.base().equals(0))
-			floatValue = Math.pow(value.base(), floatValue);
-		floatValue = floatValue * value.scale();
-		floatValue = floatValue + value.offset();
-		
-		if (value.getType().toLowerCase().equals("f") || value.getType().toLowerCase().equals("float"))
+		if (spec.isFloating())
 			return String.valueOf(floatValue);
 		return String.valueOf(Math.round(floatValue));
 	}
 	
 	public BigInteger parse(PropertyValue value, String result) {
+		int start = result.startsWith("0x") ? 2 : 0;
+		int word = value.word();
+		return parseBig(word, value.LSB(), result, start, null, (result.length() - start) / (word * 2));
+	}
+	
+	// the value is a run of words of the given bytes each, most significant word first,
+	// with the bytes of a word least significant first when lsb is set
+	private long parseLong(int word, boolean lsb, String hex, int start, byte[] octets, int words) {
+		long val = 0;
+		for (int i = 0; i < words; i++) {
+			long thisword = 0;
+			for (int j = 0; j < word; j++)
+				thisword = (thisword << 8) | octet(hex, start, octets, lsb ? (i + 1) * word - 1 - j : i * word + j);
+			val = (val << (word * 8)) | thisword;
+		}
+		return val;
+	}
+	
+	private BigInteger parseBig(int word, boolean lsb, String hex, int start, byte[] octets, int words) {
 		BigInteger val = BigInteger.ZERO;
-		
-		if(result.startsWith("0x"))
-			result = result.substring(2, result.length());
-		
-		Integer word = value.word() * 2;
-		
-		
-		for (int i = 0; i < result.length()/word; i++) {
-			Integer start = i*word;
-			Integer finish = (i+1)*word;
-			BigInteger thisword = BigInteger.ZERO;
-		
-			for (int j = 0; j < word/2; j++) {
-				if (value.LSB()) {
-					Integer index = finish - j * 2;
-					Integer intval = Integer.decode("0x"+result.substring(index-2,index));
-					thisword = BigInteger.valueOf(intval).add(thisword.shiftLeft(8));
-				} else {
-					Integer index = start + j * 2;
-					Integer intval = Integer.decode("0x"+result.substring(index,index+2));
-					thisword = BigInteger.valueOf(intval).add(thisword.shiftLeft(8));
-				}
-			}
-			
-			val = thisword.add(val.shiftLeft(word*4));				
+		byte[] thisword = new byte[word + 1];
+		for (int i = 0; i < words; i++) {
+			// leading zero byte keeps the word positive
+			for (int j = 0; j < word; j++)
+				thisword[j + 1] = (byte) octet(hex, start, octets, lsb ? (i + 1) * word - 1 - j : i * word + j);
+			val = new BigInteger(thisword).add(val.shiftLeft(word * 8));
 		}
-		
 		return val;
 	}
+	
+	// the k-th byte, from the octets or else from two hex digits of the string
+	private int octet(String hex, int start, byte[] octets, int k) {
+		if (octets != null)
+			return octets[k] & 0xFF;
+		int index = start + k * 2;
+		int high = Character.digit(hex.charAt(index), 16);
+		int low = Character.digit(hex.charAt(index + 1), 16);
+		if (high < 0 || low < 0)
+			throw new NumberFormatException("For input string: \"" + hex.substring(index, index + 2) + "\"");
+		return (high << 4) | low;
+	}
 }
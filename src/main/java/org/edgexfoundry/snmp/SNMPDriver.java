@@ -20,37 +20,70 @@
 package org.edgexfoundry.snmp;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.PreDestroy;
 
 import org.edgexfoundry.data.DeviceStore;
 import org.edgexfoundry.data.ObjectStore;
 import org.edgexfoundry.data.ProfileStore;
+import org.edgexfoundry.domain.ResponseObject;
 import org.edgexfoundry.domain.SNMPAttribute;
 import org.edgexfoundry.domain.SNMPDevice;
 import org.edgexfoundry.domain.SNMPObject;
+import org.edgexfoundry.domain.SNMPOperation;
+import org.edgexfoundry.domain.SNMPValue;
 import org.edgexfoundry.domain.ScanList;
+import org.edgexfoundry.domain.Transaction;
+import org.edgexfoundry.domain.VariableEncoder;
 import org.edgexfoundry.domain.meta.Addressable;
-import org.edgexfoundry.domain.meta.ProfileProperty;
-import org.edgexfoundry.domain.meta.PropertyValue;
+import org.edgexfoundry.domain.meta.Device;
 import org.edgexfoundry.domain.meta.ResourceOperation;
 import org.edgexfoundry.exception.BadCommandRequestException;
+import org.edgexfoundry.exception.CommandSendException;
 import org.edgexfoundry.exception.DeviceNotFoundException;
 import org.edgexfoundry.exception.controller.ServiceException;
 import org.edgexfoundry.handler.SNMPHandler;
 import org.edgexfoundry.support.logging.client.EdgeXLogger;
 import org.edgexfoundry.support.logging.client.EdgeXLoggerFactory;
 import org.snmp4j.CommunityTarget;
+import org.snmp4j.ScopedPDU;
 import org.snmp4j.PDU;
 import org.snmp4j.Snmp;
-import org.snmp4j.TransportMapping;
+import org.snmp4j.Target;
+import org.snmp4j.UserTarget;
 import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.event.ResponseListener;
 import org.snmp4j.mp.SnmpConstants;
-import org.snmp4j.smi.Integer32;
+import org.snmp4j.security.USM;
+import org.snmp4j.smi.Address;
 import org.snmp4j.smi.OID;
 import org.snmp4j.smi.OctetString;
 import org.snmp4j.smi.UdpAddress;
 import org.snmp4j.smi.Variable;
 import org.snmp4j.smi.VariableBinding;
-import org.snmp4j.transport.DefaultUdpTransportMapping;
+import org.snmp4j.util.DefaultPDUFactory;
+import org.snmp4j.util.TreeEvent;
+import org.snmp4j.util.TreeListener;
+import org.snmp4j.util.TreeUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
@@ -82,176 +115,908 @@ public class SNMPDriver {
 	@Value("${snmp.timeout}")
 	private int m_snmpTimeout;
 
+	// upper bound on variable bindings carried by a single GET request
+	@Value("${snmp.max.varbinds:32}")
+	private int m_maxVarbinds;
+
+	// approximate budget in bytes for the encoded variable bindings of a single GET request
+	@Value("${snmp.max.pdu.size:1000}")
+	private int m_maxPduSize;
+
+	// rows requested per GETBULK when walking a table
+	@Value("${snmp.max.repetitions:10}")
+	private int m_maxRepetitions;
+
+	// send requests through the callback API instead of blocking a thread per request
+	@Value("${snmp.async:true}")
+	private boolean m_async;
+
+	// maximum number of requests outstanding at once in async mode
+	@Value("${snmp.async.window:10000}")
+	private int m_asyncWindow;
+
+	@Value("${snmp.async.threads:8}")
+	private int m_completionThreads;
+
+	@Value("${snmp.async.queue:10000}")
+	private int m_completionQueue;
+
+	// number of UDP sockets, each with its own listen thread, that devices are spread across
+	@Value("${snmp.transport.stripes:4}")
+	private int m_transportStripes;
+
+	// socket receive buffer per stripe in bytes, 0 keeps the operating system default
+	@Value("${snmp.transport.receive.buffer:0}")
+	private int m_receiveBufferSize;
+
+	private volatile List<SNMPSession> sessions = new ArrayList<SNMPSession>();
 
+	private Semaphore window;
+	private ExecutorService completions;
+	// takes the completions the full completion queue refuses, so none runs on a transport listen thread
+	private ExecutorService overflow;
 
+	// comma separated IPv4 CIDR ranges swept by discovery, nothing is swept when empty
+	@Value("${snmp.discovery.ranges:}")
+	private String m_discoveryRanges;
 
-	@SuppressWarnings("rawtypes")
-	private TransportMapping snmpTransportMapping;
-	private Snmp snmpInstance;
+	@Value("${snmp.discovery.community:public}")
+	private String m_discoveryCommunity;
 
-	public ScanList discover() {
+	@Value("${snmp.discovery.port:161}")
+	private int m_discoveryPort;
+
+	// hosts probed per second, 0 does not pace the sweep
+	@Value("${snmp.discovery.rate:500}")
+	private int m_discoveryRate;
+
+	// probes outstanding at once during a sweep
+	@Value("${snmp.discovery.window:256}")
+	private int m_discoveryWindow;
+
+	@Value("${snmp.discovery.timeout:1000}")
+	private int m_discoveryTimeout;
+
+	@Value("${snmp.discovery.retries:0}")
+	private int m_discoveryRetries;
+
+	private static final OID SYS_DESCR = new OID("1.3.6.1.2.1.1.1.0");
+	private static final OID SYS_OBJECT_ID = new OID("1.3.6.1.2.1.1.2.0");
+	private static final OID SYS_NAME = new OID("1.3.6.1.2.1.1.5.0");
+
+	// resolved targets keyed by device address, then by community
+	private Map<String, Map<String, Target>> targets = new ConcurrentHashMap<String, Map<String, Target>>();
+	
+	private final SNMPSecurity security = new SNMPSecurity();
+
+	// Sweep the configured CIDR ranges with a GET of the system group to every host, paced to the
+	// discovery rate with at most the discovery window outstanding, and list the hosts that answered
+	// with the keys DeviceDiscovery matches watchers against: name, address, interface and port,
+	// plus sysObjectID, sysName and sysDescr
+	public synchronized ScanList discover() {
 		ScanList scan = new ScanList();
-		// Fill with SNMP specific discovery mechanism
+		// each range is kept as its first and last host, addresses are only formed as they are probed
+		List<long[]> ranges = new ArrayList<long[]>();
+		long hosts = 0;
+		for (String range: m_discoveryRanges.split(",")) {
+			if (range.trim().isEmpty())
+				continue;
+			try {
+				long[] bounds = hosts(range.trim());
+				ranges.add(bounds);
+				hosts += bounds[1] - bounds[0] + 1;
+			} catch (IllegalArgumentException e) {
+				logger.error("Skipping discovery range " + range + ": " + e.getMessage());
+			}
+		}
+		if (hosts == 0)
+			return scan;
+		
+		long started = System.currentTimeMillis();
+		Queue<Map<String, String>> found = new ConcurrentLinkedQueue<Map<String, String>>();
+		int window = Math.max(1, m_discoveryWindow);
+		Semaphore inFlight = new Semaphore(window);
+		long interval = m_discoveryRate > 0 ? TimeUnit.SECONDS.toNanos(1) / m_discoveryRate : 0;
+		long next = System.nanoTime();
+		try {
+			for (long[] range: ranges) {
+				for (long host = range[0]; host <= range[1]; host++) {
+					if (interval > 0) {
+						long wait = next - System.nanoTime();
+						if (wait > 0)
+							LockSupport.parkNanos(wait);
+						next = Math.max(next, System.nanoTime() - interval) + interval;
+					}
+					inFlight.acquire();
+					try {
+						probe(address(host), found).whenComplete((v, error) -> inFlight.release());
+					} catch (RuntimeException e) {
+						inFlight.release();
+						throw e;
+					}
+				}
+			}
+			// every probe has answered or timed out once the whole window is free again
+			inFlight.acquire(window);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		for (Map<String, String> device: found)
+			scan.add(device);
+		logger.info("Discovery swept " + hosts + " hosts in " + (System.currentTimeMillis() - started) + "ms, " + found.size() + " answered");
 		return scan;
 	}
+	
+	private CompletableFuture<Void> probe(String host, Queue<Map<String, String>> found) {
+		CommunityTarget target = new CommunityTarget();
+		target.setCommunity(new OctetString(m_discoveryCommunity));
+		target.setVersion(m_snmpVersion == 1 ? SnmpConstants.version1 : SnmpConstants.version2c);
+		target.setAddress(new UdpAddress(host + "/" + m_discoveryPort));
+		target.setRetries(m_discoveryRetries);
+		target.setTimeout(m_discoveryTimeout);
+		
+		PDU pdu = new PDU();
+		pdu.add(new VariableBinding(SYS_OBJECT_ID));
+		pdu.add(new VariableBinding(SYS_NAME));
+		pdu.add(new VariableBinding(SYS_DESCR));
+		pdu.setType(PDU.GET);
+		
+		return send(pdu, target, null).handle((responsePDU, error) -> {
+			if (error != null || responsePDU == null || responsePDU.getErrorStatus() != PDU.noError)
+				return null;
+			Map<String, String> device = new LinkedHashMap<String, String>();
+			device.put("address", host);
+			device.put("interface", host);
+			device.put("port", String.valueOf(m_discoveryPort));
+			for (VariableBinding binding: responsePDU.getVariableBindings()) {
+				if (binding.getVariable().isException())
+					continue;
+				if (SYS_OBJECT_ID.equals(binding.getOid()))
+					device.put("sysObjectID", binding.getVariable().toString());
+				else if (SYS_NAME.equals(binding.getOid()))
+					device.put("sysName", binding.getVariable().toString());
+				else if (SYS_DESCR.equals(binding.getOid()))
+					device.put("sysDescr", binding.getVariable().toString());
+			}
+			String sysName = device.get("sysName");
+			device.put("name", sysName == null || sysName.isEmpty() ? host : sysName);
+			found.add(device);
+			return null;
+		});
+	}
+	
+	// the first and last host address of an IPv4 CIDR range, without the network and broadcast addresses
+	// below a /31, a plain address is a range of one. Ranges wider than a /16 are refused.
+	static long[] hosts(String cidr) {
+		String[] parts = cidr.split("/");
+		int prefix = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 32;
+		if (prefix < 16 || prefix > 32)
+			throw new IllegalArgumentException("prefix must be between 16 and 32");
+		String[] octets = parts[0].trim().split("\\.");
+		if (octets.length != 4)
+			throw new IllegalArgumentException("not an IPv4 address");
+		long address = 0;
+		for (String octet: octets) {
+			int value = Integer.parseInt(octet);
+			if (value < 0 || value > 255)
+				throw new IllegalArgumentException("not an IPv4 address");
+			address = (address << 8) | value;
+		}
+		long size = 1L << (32 - prefix);
+		long first = address & ~(size - 1) & 0xffffffffL;
+		long last = first + size - 1;
+		if (prefix < 31) {
+			first++;
+			last--;
+		}
+		return new long[] { first, last };
+	}
+	
+	static String address(long host) {
+		return ((host >> 24) & 0xff) + "." + ((host >> 16) & 0xff) + "." + ((host >> 8) & 0xff) + "." + (host & 0xff);
+	}
 
 	// operation is get or set
 	// Device to be written to
 	// SNMP Object to be written to
 	// value is string to be written or null
-	public void process(ResourceOperation operation, SNMPDevice device, SNMPObject object, String value, String transactionId, String opId) {
-		String result = "";
-		result = processCommand(operation.getOperation(), device.getAddressable(), object, value);
-		objectCache.put(device, operation, result);
-		handler.completeTransaction(transactionId, opId, objectCache.getResponses(device, operation));
+	public CompletableFuture<Void> process(ResourceOperation operation, SNMPDevice device, SNMPObject object, String value, String transactionId, int opId) {
+		Transaction transaction = handler.getTransaction(transactionId);
+		CompletableFuture<SNMPValue> request;
+		try {
+			request = processCommandAsync(operation.getOperation(), device.getAddressable(), object, value, transaction);
+		} catch (RuntimeException e) {
+			// no target for the device, the transaction still hears about the operation
+			request = new CompletableFuture<SNMPValue>();
+			request.completeExceptionally(e);
+		}
+		return request.handle((result, error) -> {
+			List<ResponseObject> responses = null;
+			String failure = null;
+			try {
+				if (error != null) {
+					failure = String.valueOf(cause(error).getMessage());
+					logger.error("Exception processing " + operation.getOperation() + " for " + device.getName() + ": " + failure);
+				} else {
+					objectCache.put(device, operation, result);
+					responses = objectCache.getResponses(device, operation);
+				}
+			} catch (Exception e) {
+				failure = String.valueOf(e.getMessage());
+				logger.error("Exception processing " + operation.getOperation() + " for " + device.getName() + ": " + e);
+			} finally {
+				if (failure != null)
+					handler.failTransaction(transactionId, opId, responses, failure);
+				else
+					handler.completeTransaction(transactionId, opId, responses);
+			}
+			return null;
+		});
+	}
+
+	// Batched get or set of all the operations of a command for one device, the operations are either all gets or all sets
+	// the results are fanned back out to the object cache one operation at a time
+	public CompletableFuture<Void> process(SNMPDevice device, List<SNMPOperation> operations, String transactionId, int opId) {
+		Transaction transaction = handler.getTransaction(transactionId);
+		String method = operations.get(0).getOperation().getOperation();
+		CompletableFuture<Map<SNMPOperation, SNMPValue>> request;
+		try {
+			request = method.equals("set")
+					? setValues(device.getAddressable(), operations, transaction)
+					: getValues(device.getAddressable(), operations, transaction);
+		} catch (RuntimeException e) {
+			// no target for the device, the transaction still hears about the operations
+			request = new CompletableFuture<Map<SNMPOperation, SNMPValue>>();
+			request.completeExceptionally(e);
+		}
+		return request.handle((results, error) -> {
+			List<ResponseObject> responses = new ArrayList<ResponseObject>();
+			String failure = null;
+			try {
+				if (error != null) {
+					failure = String.valueOf(cause(error).getMessage());
+					logger.error("Exception processing batched " + method + " for " + device.getName() + ": " + failure);
+					return null;
+				}
+				List<String> unanswered = new ArrayList<String>();
+				for (SNMPOperation operation: operations) {
+					SNMPValue result = results.get(operation);
+					if (result == null) {
+						unanswered.add(operation.getObject().getName());
+						continue;
+					}
+					objectCache.put(device, operation.getOperation(), result);
+					List<ResponseObject> resp = objectCache.getResponses(device, operation.getOperation());
+					if (resp != null)
+						responses.addAll(resp);
+				}
+				if (!unanswered.isEmpty())
+					failure = "No response from " + device.getName() + " for " + unanswered;
+			} catch (Exception e) {
+				failure = String.valueOf(e.getMessage());
+				logger.error("Exception processing batched " + method + " for " + device.getName() + ": " + e);
+			} finally {
+				if (failure != null)
+					handler.failTransaction(transactionId, opId, responses, failure);
+				else
+					handler.completeTransaction(transactionId, opId, responses);
+			}
+			return null;
+		});
+	}
+	
+	private Throwable cause(Throwable error) {
+		return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
 	}
 
 	public String processCommand(String operation, Addressable addressable, SNMPObject object, String value) {
-		logger.info("ProcessCommand: " + operation + ", interface: " + addressable.getProtocol() + ", address: " + addressable.getAddress() + ", attributes: " + object.getAttributes() + ", value: " + value );
-		String result = "";
-		// TODO SNMP stack goes here, return the raw value from the device as a string for processing
-		CommunityTarget comTarget = createCommunityTarget(object.getAttributes(), addressable);
-		if (operation.toLowerCase().equals("get")) {
-			result = getValue(comTarget, object.getAttributes(), addressable);
-		} else {
-			result = setValue(comTarget, object, addressable, value);
+		try {
+			SNMPValue result = processCommandAsync(operation, addressable, object, value, null).join();
+			return result == null ? null : result.toString();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new ServiceException(e);
 		}
-		return result;
 	}
 
-	@SuppressWarnings("null")
-	private String setValue(CommunityTarget comTarget, SNMPObject object, Addressable addressable, String value) {
-		String result = "";
-		try
-		{
-			// Create the PDU object
-			PDU pdu = new PDU();
-			OID oid = new OID(object.getAttributes().getOid());
-			ProfileProperty properties = object.getProperties();
-			PropertyValue val = properties.getValue();
-			String type = val.getType();
-			Variable variable = null;
-			if(type.equalsIgnoreCase("Integer"))
-			{
-				if(value != null)
-					variable = new Integer32(Integer.parseInt(value));
+	// requests sent on behalf of a transaction are cancelled along with it
+	private CompletableFuture<SNMPValue> processCommandAsync(String operation, Addressable addressable, SNMPObject object, String value, Transaction transaction) {
+		logger.info("ProcessCommand: " + operation + ", interface: " + addressable.getProtocol() + ", address: " + addressable.getAddress() + ", attributes: " + object.getAttributes() + ", value: " + value );
+		return getTarget(object.getAttributes(), addressable).thenCompose(target -> {
+			if (operation.toLowerCase().equals("get") && object.getAttributes().isTable()) {
+				return walk(target, object, transaction);
+			} else if (operation.toLowerCase().equals("get")) {
+				return getValue(target, object, addressable, transaction);
+			} else {
+				return setValue(target, object, addressable, value, transaction);
 			}
-			
-			VariableBinding varBind = new VariableBinding(oid, variable);
+		});
+	}
 
-			pdu.add(varBind);
-			pdu.setType(PDU.SET);
-			ResponseEvent response = snmpInstance.set(pdu, comTarget);
+	private CompletableFuture<SNMPValue> setValue(Target target, SNMPObject object, Addressable addressable, String value, Transaction transaction) {
+		// Create the PDU object
+		PDU pdu = createPDU(target, object.getAttributes());
+		OID oid = object.getOid();
+		VariableBinding varBind = new VariableBinding(oid, encode(object, value));
 
-			// Process Agent Response
-			if (response != null)
+		pdu.add(varBind);
+		pdu.setType(PDU.SET);
+		
+		return send(pdu, target, transaction).handle((responsePDU, error) -> {
+			SNMPValue result = SNMPValue.text("");
+			try
 			{
-				PDU responsePDU = response.getResponse();
+				if (error != null)
+					throw error;
+				// Process Agent Response
 				if (responsePDU != null)
 				{
 					int errorStatus = responsePDU.getErrorStatus();
 					
 					if (errorStatus == PDU.noError)
 					{
-						result = responsePDU.getVariable(oid).toString();
+						result = SNMPValue.of(responsePDU.getVariable(oid));
 					}
 					else
 					{
 						
-						result = responsePDU.getErrorStatusText();
+						result = SNMPValue.text(responsePDU.getErrorStatusText());
 					}
 				}
 				else
 				{
-					throw new BadCommandRequestException(responsePDU.getErrorStatusText());
+					result = SNMPValue.text("Connection timed out");
+					throw new DeviceNotFoundException(result.getText());
 				}
+			}catch(Throwable e){
+				logger.error("Exception in setValue:" + e);
 			}
-			else
-			{
-				result = "Connection timed out";
-				throw new DeviceNotFoundException(result);
-			}
-			
-
-		}catch(Exception e){
-			logger.error("Exception in setValue:" + e);
+			return result;
+		});
+	}
+	
+	// One SET per community or SNMPv3 user carrying all of the command's writes, so the agent applies them together or not at all.
+	// Sets are never split by the varbind limits, an agent that cannot take the PDU answers tooBig for all of them.
+	private CompletableFuture<Map<SNMPOperation, SNMPValue>> setValues(Addressable addressable, List<SNMPOperation> operations, Transaction transaction) {
+		logger.info("ProcessCommand: set, interface: " + addressable.getProtocol() + ", address: " + addressable.getAddress() + ", objects: " + operations.size());
+		Map<SNMPOperation, SNMPValue> results = new ConcurrentHashMap<SNMPOperation, SNMPValue>();
+		
+		Map<String, List<SNMPOperation>> communities = new LinkedHashMap<String, List<SNMPOperation>>();
+		for (SNMPOperation operation: operations)
+			communities.computeIfAbsent(operation.getObject().getAttributes().getTargetKey(), c -> new ArrayList<SNMPOperation>()).add(operation);
+		
+		List<CompletableFuture<Void>> requests = new ArrayList<CompletableFuture<Void>>();
+		for (List<SNMPOperation> group: communities.values()) {
+			List<VariableBinding> bindings = new ArrayList<VariableBinding>();
+			for (SNMPOperation operation: group)
+				bindings.add(new VariableBinding(operation.getObject().getOid(), encode(operation.getObject(), operation.getValue())));
+			requests.add(getTarget(group.get(0).getObject().getAttributes(), addressable).thenCompose(target -> {
+				PDU pdu = createPDU(target, group.get(0).getObject().getAttributes());
+				pdu.addAll(bindings);
+				pdu.setType(PDU.SET);
+				return send(pdu, target, transaction);
+			}).handle((responsePDU, error) -> {
+				if (error != null) {
+					logger.error("Exception in setValues():" + error);
+					return null;
+				}
+				// like a single set, each operation is answered with what the agent said about the whole PDU
+				if (responsePDU == null) {
+					logger.error("Exception in setValues(): Connection timed out for " + group);
+					for (SNMPOperation operation: group)
+						results.put(operation, SNMPValue.text("Connection timed out"));
+					return null;
+				}
+				if (responsePDU.getErrorStatus() != PDU.noError) {
+					int errorIndex = responsePDU.getErrorIndex();
+					logger.error("Exception in setValues(): " + responsePDU.getErrorStatusText()
+						+ (errorIndex > 0 && errorIndex <= group.size() ? " for " + group.get(errorIndex - 1) : " for " + group));
+					for (SNMPOperation operation: group)
+						results.put(operation, SNMPValue.text(responsePDU.getErrorStatusText()));
+					return null;
+				}
+				for (int i = 0; i < group.size() && i < responsePDU.size(); i++)
+					results.put(group.get(i), SNMPValue.of(responsePDU.get(i).getVariable()));
+				return null;
+			}));
 		}
-		return result;
+		return CompletableFuture.allOf(requests.toArray(new CompletableFuture[requests.size()])).thenApply(v -> results);
 	}
 	
-	private String getValue(CommunityTarget comTarget, SNMPAttribute attributes, Addressable addressable) {
-		String result = "";
-		try
-		{
-			PDU pdu = new PDU();
-			OID oid = new OID (attributes.getOid());
-			pdu.add(new VariableBinding(oid));
-			pdu.setType(PDU.GET);
-			ResponseEvent response = snmpInstance.get(pdu, comTarget);
-			PDU responsePDU = response.getResponse();
+	// the command handler has already checked that the value fits the object's syntax
+	private Variable encode(SNMPObject object, String value) {
+		VariableEncoder encoder = object.getEncoder();
+		if (encoder == null || value == null)
+			throw new BadCommandRequestException("No value of a known SNMP type to set on " + object.getName());
+		return encoder.encode(value);
+	}
 	
-			if (responsePDU != null)
+	private CompletableFuture<SNMPValue> getValue(Target target, SNMPObject object, Addressable addressable, Transaction transaction) {
+		PDU pdu = createPDU(target, object.getAttributes());
+		OID oid = object.getOid();
+		pdu.add(new VariableBinding(oid));
+		pdu.setType(PDU.GET);
+		
+		return send(pdu, target, transaction).thenApply(responsePDU -> {
+			SNMPValue result;
+			try
 			{
-				int errorStatus = responsePDU.getErrorStatus();
-				if (errorStatus == PDU.noError)
+				if (responsePDU != null)
 				{
-					Variable var = responsePDU.getVariable(oid);
-					result = var.toString();
+					int errorStatus = responsePDU.getErrorStatus();
+					if (errorStatus == PDU.noError)
+					{
+						result = SNMPValue.of(responsePDU.getVariable(oid));
+					}
+					else
+					{
+						String errorStatusText = responsePDU.getErrorStatusText();
+						throw new BadCommandRequestException(errorStatusText);
+					}
 				}
 				else
 				{
-					String errorStatusText = responsePDU.getErrorStatusText();
-					throw new BadCommandRequestException(errorStatusText);
+					throw new DeviceNotFoundException("Connection timed out");
 				}
+			}catch(Exception e){
+				logger.error("Exception in getValue():" + e);
+				throw new ServiceException(e);
+			}
+			return result;
+		});
+	}
+
+	private CompletableFuture<Map<SNMPOperation, SNMPValue>> getValues(Addressable addressable, List<SNMPOperation> operations, Transaction transaction) {
+		logger.info("ProcessCommand: get, interface: " + addressable.getProtocol() + ", address: " + addressable.getAddress() + ", objects: " + operations.size());
+		Map<SNMPOperation, SNMPValue> results = new ConcurrentHashMap<SNMPOperation, SNMPValue>();
+		
+		// a request PDU can only carry one community, so group the operations by it first
+		// tables are walked on their own
+		List<CompletableFuture<Void>> requests = new ArrayList<CompletableFuture<Void>>();
+		Map<String, List<SNMPOperation>> communities = new LinkedHashMap<String, List<SNMPOperation>>();
+		for (SNMPOperation operation: operations) {
+			SNMPAttribute attributes = operation.getObject().getAttributes();
+			if (attributes.isTable()) {
+				requests.add(getTarget(attributes, addressable).thenCompose(target -> walk(target, operation.getObject(), transaction)).handle((rows, error) -> {
+					if (error != null)
+						logger.error("Exception in walk(): " + error.getMessage() + " for " + operation);
+					else
+						results.put(operation, rows);
+					return null;
+				}));
+				continue;
+			}
+			String community = attributes.getTargetKey();
+			if (!communities.containsKey(community))
+				communities.put(community, new ArrayList<SNMPOperation>());
+			communities.get(community).add(operation);
+		}
+		
+		for (List<SNMPOperation> group: communities.values()) {
+			requests.add(getTarget(group.get(0).getObject().getAttributes(), addressable).thenCompose(target -> {
+				List<CompletableFuture<Void>> chunks = new ArrayList<CompletableFuture<Void>>();
+				for (List<SNMPOperation> chunk: partition(group))
+					chunks.add(getValues(target, chunk, results, transaction));
+				return CompletableFuture.allOf(chunks.toArray(new CompletableFuture[chunks.size()]));
+			}));
+		}
+		return CompletableFuture.allOf(requests.toArray(new CompletableFuture[requests.size()])).thenApply(v -> results);
+	}
+
+	// split the operations so that no request exceeds the configured varbind count or size
+	private List<List<SNMPOperation>> partition(List<SNMPOperation> operations) {
+		List<List<SNMPOperation>> chunks = new ArrayList<List<SNMPOperation>>();
+		List<SNMPOperation> chunk = new ArrayList<SNMPOperation>();
+		int size = 0;
+		for (SNMPOperation operation: operations) {
+			int length = new VariableBinding(operation.getObject().getOid()).getBERLength();
+			if (!chunk.isEmpty() && (chunk.size() >= m_maxVarbinds || size + length > m_maxPduSize)) {
+				chunks.add(chunk);
+				chunk = new ArrayList<SNMPOperation>();
+				size = 0;
+			}
+			chunk.add(operation);
+			size += length;
+		}
+		if (!chunk.isEmpty())
+			chunks.add(chunk);
+		return chunks;
+	}
+
+	private CompletableFuture<Void> getValues(Target target, List<SNMPOperation> operations, Map<SNMPOperation, SNMPValue> results, Transaction transaction) {
+		PDU pdu = createPDU(target, operations.get(0).getObject().getAttributes());
+		for (SNMPOperation operation: operations)
+			pdu.add(new VariableBinding(operation.getObject().getOid()));
+		pdu.setType(PDU.GET);
+		
+		return send(pdu, target, transaction).handle((responsePDU, error) -> {
+			if (error != null)
+			{
+				logger.error("Exception in getValues():" + error);
+				return CompletableFuture.<Void>completedFuture(null);
 			}
-			else
+			if (responsePDU == null)
 			{
-				result = "Connection timed out";
-				throw new DeviceNotFoundException(result);
+				logger.error("Exception in getValues(): Connection timed out for " + operations);
+				return CompletableFuture.<Void>completedFuture(null);
+			}
+			
+			int errorStatus = responsePDU.getErrorStatus();
+			if (errorStatus != PDU.noError)
+			{
+				// an SNMPv1 agent fails the whole request for one bad object,
+				// drop the object it points at and retry the rest of the batch
+				int errorIndex = responsePDU.getErrorIndex();
+				if (errorIndex > 0 && errorIndex <= operations.size()) {
+					List<SNMPOperation> remaining = new ArrayList<SNMPOperation>(operations);
+					SNMPOperation failed = remaining.remove(errorIndex - 1);
+					logger.error("Exception in getValues(): " + responsePDU.getErrorStatusText() + " for " + failed);
+					if (!remaining.isEmpty())
+						return getValues(target, remaining, results, transaction);
+				} else if (operations.size() > 1) {
+					List<CompletableFuture<Void>> retries = new ArrayList<CompletableFuture<Void>>();
+					for (SNMPOperation operation: operations)
+						retries.add(getValues(target, Collections.singletonList(operation), results, transaction));
+					return CompletableFuture.allOf(retries.toArray(new CompletableFuture[retries.size()]));
+				} else {
+					logger.error("Exception in getValues(): " + responsePDU.getErrorStatusText() + " for " + operations);
+				}
+				return CompletableFuture.<Void>completedFuture(null);
 			}
-		}catch(Exception e){
-			logger.error("Exception in getValue():" + e);
-			throw new ServiceException(e);
 			
+			for (int i = 0; i < operations.size() && i < responsePDU.size(); i++) {
+				Variable var = responsePDU.get(i).getVariable();
+				if (var.isException()) {
+					logger.error("Exception in getValues(): " + var + " for " + operations.get(i));
+					continue;
+				}
+				results.put(operations.get(i), SNMPValue.of(var));
+			}
+			return CompletableFuture.<Void>completedFuture(null);
+		}).thenCompose(next -> next);
+	}
+
+	// Walk the table or subtree rooted at the object's oid, GETBULK for v2c/v3 and GETNEXT for v1
+	// completes with all rows keyed by row index, the table is only rendered as JSON at the core data boundary
+	private CompletableFuture<SNMPValue> walk(Target target, SNMPObject object, Transaction transaction) {
+		SNMPAttribute attributes = object.getAttributes();
+		OID root = object.getOid();
+		SNMPSession session = session(target);
+		DefaultPDUFactory factory = new DefaultPDUFactory();
+		if (attributes.getContextName() != null)
+			factory.setContextName(new OctetString(attributes.getContextName()));
+		TreeUtils treeUtils = new TreeUtils(session.getSnmp(), factory);
+		treeUtils.setMaxRepetitions(attributes.getMaxRepetitions() != null ? attributes.getMaxRepetitions() : m_maxRepetitions);
+		Map<String, Variable> rows = new LinkedHashMap<String, Variable>();
+		CompletableFuture<SNMPValue> future = new CompletableFuture<SNMPValue>();
+		
+		session.requestSent();
+		if (!m_async) {
+			for (TreeEvent event: treeUtils.getSubtree(target, root)) {
+				if (event.isError()) {
+					walkFailed(session, event);
+					future.completeExceptionally(new DeviceNotFoundException(event.getErrorMessage()));
+					return future;
+				}
+				addRows(root, event, rows);
+			}
+			session.responseReceived();
+			future.complete(SNMPValue.table(rows));
+			return future;
+		}
+		
+		// a walk holds one slot of the window until it finishes
+		if (!acquireWindow(future))
+			return future;
+		
+		AtomicBoolean done = new AtomicBoolean(false);
+		treeUtils.getSubtree(target, root, null, new TreeListener() {
+			@Override
+			public boolean next(TreeEvent event) {
+				addRows(root, event, rows);
+				if (transaction != null)
+					transaction.progressed();
+				return true;
+			}
+			
+			@Override
+			public void finished(TreeEvent event) {
+				if (!done.compareAndSet(false, true))
+					return;
+				window.release();
+				if (event.isError())
+					walkFailed(session, event);
+				else
+					session.responseReceived();
+				completions.execute(() -> {
+					if (event.isError()) {
+						future.completeExceptionally(new DeviceNotFoundException(event.getErrorMessage()));
+					} else {
+						addRows(root, event, rows);
+						future.complete(SNMPValue.table(rows));
+					}
+				});
+			}
+			
+			@Override
+			public boolean isFinished() {
+				return done.get();
+			}
+		});
+		
+		// TreeUtils stops walking on the next response once the listener reports finished
+		if (transaction != null) {
+			transaction.onCancel(() -> {
+				if (!done.compareAndSet(false, true))
+					return;
+				window.release();
+				session.requestTimedOut();
+				completions.execute(() -> future.completeExceptionally(new DeviceNotFoundException("Walk of " + root + " cancelled")));
+			});
+		}
+		return future;
+	}
+	
+	private void walkFailed(SNMPSession session, TreeEvent event) {
+		if (event.getStatus() == TreeEvent.STATUS_TIMEOUT)
+			session.requestTimedOut();
+		else
+			session.requestFailed();
+	}
+	
+	private void addRows(OID root, TreeEvent event, Map<String, Variable> rows) {
+		VariableBinding[] bindings = event.getVariableBindings();
+		if (bindings == null)
+			return;
+		for (VariableBinding binding: bindings) {
+			OID oid = binding.getOid();
+			if (oid == null || !oid.startsWith(root) || binding.getVariable().isException())
+				continue;
+			OID index = new OID(oid.getValue(), root.size(), oid.size() - root.size());
+			rows.put(index.toString(), binding.getVariable());
+		}
+	}
+
+	// Send a request PDU and complete with the response PDU, or null on timeout
+	// in async mode the number of outstanding requests is bounded by the window and
+	// completions are handed to the completion executor rather than run on the transport thread
+	// cancelling the transaction withdraws the request and completes it as timed out
+	private CompletableFuture<PDU> send(PDU pdu, Target target, Transaction transaction) {
+		CompletableFuture<PDU> future = new CompletableFuture<PDU>();
+		SNMPSession session = session(target);
+		session.requestSent();
+		if (!m_async) {
+			try {
+				ResponseEvent response = session.getSnmp().send(pdu, target);
+				PDU responsePDU = response == null ? null : response.getResponse();
+				completed(session, responsePDU);
+				if (transaction != null && responsePDU != null)
+					transaction.progressed();
+				future.complete(responsePDU);
+			} catch (IOException e) {
+				session.requestFailed();
+				future.completeExceptionally(e);
+			}
+			return future;
+		}
+		
+		if (!acquireWindow(future))
+			return future;
+		
+		AtomicBoolean done = new AtomicBoolean(false);
+		ResponseListener listener = new ResponseListener() {
+			@Override
+			public void onResponse(ResponseEvent event) {
+				// always cancel, otherwise snmp4j keeps the request (and retransmits) until timeout
+				((Snmp) event.getSource()).cancel(event.getRequest(), this);
+				if (!done.compareAndSet(false, true))
+					return;
+				window.release();
+				if (event.getError() != null)
+					session.requestFailed();
+				else
+					completed(session, event.getResponse());
+				if (transaction != null && event.getResponse() != null)
+					transaction.progressed();
+				completions.execute(() -> {
+					if (event.getError() != null)
+						future.completeExceptionally(event.getError());
+					else
+						future.complete(event.getResponse());
+				});
+			}
+		};
+		
+		try {
+			session.getSnmp().send(pdu, target, null, listener);
+		} catch (IOException e) {
+			if (done.compareAndSet(false, true))
+				window.release();
+			session.requestFailed();
+			future.completeExceptionally(e);
+			return future;
+		}
+		
+		if (transaction != null) {
+			transaction.onCancel(() -> {
+				session.getSnmp().cancel(pdu, listener);
+				if (!done.compareAndSet(false, true))
+					return;
+				window.release();
+				session.requestTimedOut();
+				completions.execute(() -> future.complete(null));
+			});
+		}
+		return future;
+	}
+	
+	// Wait at most one request's timeout for a slot, failing the future when none frees up. Follow-on
+	// requests are sent from completions, so an unbounded wait could hold the threads the slots wait on.
+	private boolean acquireWindow(CompletableFuture<?> future) {
+		try {
+			if (window.tryAcquire(m_snmpTimeout * (long) (m_snmpRetries + 1), TimeUnit.MILLISECONDS))
+				return true;
+			future.completeExceptionally(new CommandSendException("No room in the SNMP request window of " + m_asyncWindow));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			future.completeExceptionally(e);
 		}
+		return false;
+	}
+	
+	private void completed(SNMPSession session, PDU response) {
+		if (response == null)
+			session.requestTimedOut();
+		else
+			session.responseReceived();
+	}
+	
+	// a device always lands on the same stripe
+	private SNMPSession session(Target target) {
+		return session(target.getAddress());
+	}
+	
+	private SNMPSession session(Address address) {
+		List<SNMPSession> pool = sessions;
+		return pool.get(Math.floorMod(address.hashCode(), pool.size()));
+	}
+	
+	public List<Map<String, Object>> getStatistics() {
+		List<Map<String, Object>> statistics = new ArrayList<Map<String, Object>>();
+		for (SNMPSession session: sessions)
+			statistics.add(session.getStatistics());
+		return statistics;
+	}
 
-		return result;
+	public boolean isAsync() {
+		return m_async;
+	}
+
+	// Targets are resolved once per device address and community or SNMPv3 user, then reused for every request.
+	// A community target is ready at once. A user target is ready once its engine is discovered, so it is
+	// created outside the map and the first one stored wins.
+	private CompletableFuture<Target> getTarget(SNMPAttribute attributes, Addressable addressable) {
+		Map<String, Target> credentials = targets.computeIfAbsent(targetKey(addressable), 
+				key -> new ConcurrentHashMap<String, Target>());
+		Target target = credentials.get(attributes.getTargetKey());
+		if (target != null)
+			return CompletableFuture.completedFuture(target);
+		CompletableFuture<? extends Target> created = attributes.isSecure() ? createUserTarget(attributes, addressable)
+				: CompletableFuture.completedFuture(createCommunityTarget(attributes, addressable));
+		return created.thenApply(resolved -> {
+			Target raced = credentials.putIfAbsent(attributes.getTargetKey(), resolved);
+			return raced != null ? raced : resolved;
+		});
+	}
+
+	private String targetKey(Addressable addressable) {
+		return addressable.getAddress() + "/" + addressable.getPort();
+	}
+
+	// Drop the resolved targets of a device so changed addresses, communities or engines are picked up
+	public void invalidate(Device device) {
+		Addressable addressable = device.getAddressable();
+		if (addressable == null)
+			return;
+		targets.remove(targetKey(addressable));
+		security.forget(new UdpAddress(targetKey(addressable)));
 	}
 
 	private CommunityTarget createCommunityTarget(SNMPAttribute attributes, Addressable addressable) {
-		CommunityTarget comTarget = new CommunityTarget();
-		comTarget.setCommunity(new OctetString(attributes.getCommunity()));
+		CommunityTarget target = new CommunityTarget();
+		target.setCommunity(new OctetString(attributes.getCommunity()));
 		switch(m_snmpVersion)
 		{
 			case 1:
-				comTarget.setVersion(SnmpConstants.version1);
+				target.setVersion(SnmpConstants.version1);
 				break;
 			case 2:
-				comTarget.setVersion(SnmpConstants.version2c);
+				target.setVersion(SnmpConstants.version2c);
 				break;
 			case 3:
-				comTarget.setVersion(SnmpConstants.version3);
+				// a community has no meaning to USM, objects without a securityName are read as v2c
+				logger.warn("No securityName for " + attributes.getOid() + " on " + targetKey(addressable) + ", using SNMPv2c");
+				target.setVersion(SnmpConstants.version2c);
 				break;
 	
 			default:
-				comTarget.setVersion(SnmpConstants.version1);
+				target.setVersion(SnmpConstants.version1);
 				break;
 		}
-		comTarget.setAddress(new UdpAddress(addressable.getAddress() + "/" + addressable.getPort()));
-		comTarget.setRetries(m_snmpRetries);
-		comTarget.setTimeout(m_snmpTimeout);
-		return comTarget;
+		target.setAddress(new UdpAddress(targetKey(addressable)));
+		target.setRetries(m_snmpRetries);
+		target.setTimeout(m_snmpTimeout);
+		return target;
+	}
+
+	// the engine id is discovered and the user's keys localized to it before the target is cached,
+	// so neither is repeated per request. In async mode the discovery does not block the caller
+	// and the keys are localized on a completion thread.
+	private CompletableFuture<UserTarget> createUserTarget(SNMPAttribute attributes, Addressable addressable) {
+		Address address = new UdpAddress(targetKey(addressable));
+		return security.getEngineId(session(address).getSnmp(), address, m_snmpTimeout * (long) (m_snmpRetries + 1), m_async ? completions : null)
+				.thenApply(engineId -> createUserTarget(attributes, address, engineId));
+	}
+
+	private UserTarget createUserTarget(SNMPAttribute attributes, Address address, byte[] engineId) {
+		if (engineId == null)
+			throw new DeviceNotFoundException("No SNMPv3 engine id from " + address);
+		try {
+			security.localize(engineId, attributes);
+		} catch (IllegalArgumentException e) {
+			throw new BadCommandRequestException(e.getMessage());
+		}
+		
+		UserTarget target = new UserTarget();
+		target.setVersion(SnmpConstants.version3);
+		target.setSecurityModel(USM.SECURITY_MODEL_USM);
+		target.setSecurityName(new OctetString(attributes.getSecurityName()));
+		target.setSecurityLevel(security.getSecurityLevel(attributes));
+		target.setAuthoritativeEngineID(engineId);
+		target.setAddress(address);
+		target.setRetries(m_snmpRetries);
+		target.setTimeout(m_snmpTimeout);
+		return target;
+	}
+
+	// SNMPv3 requests are scoped to the object's context
+	private PDU createPDU(Target target, SNMPAttribute attributes) {
+		if (target.getVersion() != SnmpConstants.version3)
+			return new PDU();
+		ScopedPDU pdu = new ScopedPDU();
+		if (attributes.getContextName() != null)
+			pdu.setContextName(new OctetString(attributes.getContextName()));
+		return pdu;
 	}
 
-	@SuppressWarnings("unchecked")
 	public void initialize() {
 		try
 		{
-			snmpTransportMapping = new DefaultUdpTransportMapping();
-			if(!snmpTransportMapping.isListening()){
-				snmpTransportMapping.listen();
+			List<SNMPSession> pool = new ArrayList<SNMPSession>();
+			for (int i = 0; i < Math.max(1, m_transportStripes); i++)
+				pool.add(new SNMPSession(i, m_receiveBufferSize, security));
+			List<SNMPSession> previous = sessions;
+			sessions = pool;
+			close(previous);
+			if (completions == null) {
+				window = new Semaphore(m_asyncWindow);
+				AtomicInteger count = new AtomicInteger();
+				AtomicInteger overflowCount = new AtomicInteger();
+				// unbounded, but the window bounds the completions that can be outstanding
+				overflow = Executors.newCachedThreadPool(r -> {
+					Thread thread = new Thread(r, "snmp-completion-overflow-" + overflowCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+				completions = new ThreadPoolExecutor(m_completionThreads, m_completionThreads, 60L, TimeUnit.SECONDS,
+						new ArrayBlockingQueue<Runnable>(m_completionQueue), r -> {
+							Thread thread = new Thread(r, "snmp-completion-" + count.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}, (r, executor) -> overflow.execute(r));
 			}
-			snmpInstance = new  Snmp(snmpTransportMapping);
 		} catch (IOException e) {
 			logger.error("Unable to initialize SNMP Transport");
 
@@ -259,13 +1024,24 @@ public class SNMPDriver {
 
 	}
 
-	public void disconnectDevice(String path) {
-		try{
-			snmpTransportMapping.close();
-			snmpInstance.close();
-		}catch(Exception e)
-		{
-			logger.error("Error while disconnecting SNMP transport and instance");
+	// the transports are shared by all devices, so only the device's own state is released
+	public void disconnectDevice(Device device) {
+		invalidate(device);
+	}
+
+	@PreDestroy
+	public void close() {
+		close(sessions);
+	}
+
+	private void close(List<SNMPSession> pool) {
+		for (SNMPSession session: pool) {
+			try{
+				session.close();
+			}catch(Exception e)
+			{
+				logger.error("Error while disconnecting SNMP transport and instance");
+			}
 		}
 	}
 
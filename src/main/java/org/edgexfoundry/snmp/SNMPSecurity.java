@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * Copyright 2016-2017 Dell Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @microservice:  device-snmp
+ * @author: Anantha Boyapalle, Dell
+ * @version: 1.0.0
+ *******************************************************************************/
+package org.edgexfoundry.snmp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import org.edgexfoundry.domain.SNMPAttribute;
+import org.snmp4j.MessageDispatcher;
+import org.snmp4j.PDU;
+import org.snmp4j.ScopedPDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.UserTarget;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.event.ResponseListener;
+import org.snmp4j.mp.MPv3;
+import org.snmp4j.security.AuthHMAC128SHA224;
+import org.snmp4j.security.AuthHMAC192SHA256;
+import org.snmp4j.security.AuthHMAC256SHA384;
+import org.snmp4j.security.AuthHMAC384SHA512;
+import org.snmp4j.security.AuthMD5;
+import org.snmp4j.security.AuthSHA;
+import org.snmp4j.security.Priv3DES;
+import org.snmp4j.security.PrivAES128;
+import org.snmp4j.security.PrivAES192;
+import org.snmp4j.security.PrivAES256;
+import org.snmp4j.security.PrivDES;
+import org.snmp4j.security.SecurityLevel;
+import org.snmp4j.security.SecurityProtocols;
+import org.snmp4j.security.USM;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+
+// SNMPv3 user based security shared by all transport stripes: one USM and local engine id,
+// the authoritative engine id of each device discovered once, and the keys of each user
+// localized to a device's engine once, as deriving them hashes a megabyte per key
+public class SNMPSecurity {
+
+	private final byte[] localEngineId = MPv3.createLocalEngineID();
+	private final USM usm;
+	private final SecurityProtocols protocols = SecurityProtocols.getInstance();
+
+	// device address to its authoritative engine id, or the discovery still under way
+	private final Map<String, CompletableFuture<byte[]>> engineIds = new ConcurrentHashMap<String, CompletableFuture<byte[]>>();
+	// users already localized to an engine, keyed by engine, user, protocols and a digest of the passphrases
+	private final Map<String, Boolean> localized = new ConcurrentHashMap<String, Boolean>();
+
+	public SNMPSecurity() {
+		protocols.addDefaultProtocols();
+		protocols.addAuthenticationProtocol(new AuthHMAC128SHA224());
+		protocols.addAuthenticationProtocol(new AuthHMAC192SHA256());
+		protocols.addAuthenticationProtocol(new AuthHMAC256SHA384());
+		protocols.addAuthenticationProtocol(new AuthHMAC384SHA512());
+		protocols.addPrivacyProtocol(new Priv3DES());
+		protocols.addPrivacyProtocol(new PrivAES192());
+		protocols.addPrivacyProtocol(new PrivAES256());
+		usm = new USM(protocols, new OctetString(localEngineId), 0);
+	}
+
+	// swap a stripe's message processing for one on the shared USM
+	public void attach(Snmp snmp) {
+		MessageDispatcher dispatcher = snmp.getMessageDispatcher();
+		dispatcher.removeMessageProcessingModel(snmp.getMessageProcessingModel(MPv3.ID));
+		dispatcher.addMessageProcessingModel(new MPv3(usm));
+	}
+
+	// the device's engine id, asked for on the first request only, null when the device does not answer.
+	// Concurrent first requests share the one discovery rather than each sending their own,
+	// and a failed discovery is not remembered so the next request asks again.
+	// With an executor the discovery is sent without blocking and completes on the executor,
+	// without one it is sent and waited for on the calling thread.
+	public CompletableFuture<byte[]> getEngineId(Snmp snmp, Address address, long timeout, Executor executor) {
+		String key = address.toString();
+		CompletableFuture<byte[]> discovery = new CompletableFuture<byte[]>();
+		CompletableFuture<byte[]> known = engineIds.putIfAbsent(key, discovery);
+		if (known != null)
+			return known;
+		if (executor != null) {
+			discover(snmp, address, timeout, executor, key, discovery);
+			return discovery;
+		}
+		byte[] engineId = null;
+		try {
+			engineId = snmp.discoverAuthoritativeEngineID(address, timeout);
+		} finally {
+			discovered(key, discovery, engineId);
+		}
+		return discovery;
+	}
+	
+	// what discoverAuthoritativeEngineID sends, a noAuthNoPriv GET from no user: the agent reports
+	// its engine id, which MPv3 caches for the address before the report reaches the listener
+	private void discover(Snmp snmp, Address address, long timeout, Executor executor, String key, CompletableFuture<byte[]> discovery) {
+		MPv3 mp = (MPv3) snmp.getMessageProcessingModel(MPv3.ID);
+		mp.removeEngineID(address);
+		ScopedPDU pdu = new ScopedPDU();
+		pdu.setType(PDU.GET);
+		UserTarget target = new UserTarget();
+		target.setTimeout(timeout);
+		target.setAddress(address);
+		target.setSecurityLevel(SecurityLevel.NOAUTH_NOPRIV);
+		ResponseListener listener = new ResponseListener() {
+			@Override
+			public void onResponse(ResponseEvent event) {
+				((Snmp) event.getSource()).cancel(event.getRequest(), this);
+				OctetString engineId = mp.getEngineID(address);
+				executor.execute(() -> discovered(key, discovery, engineId == null ? null : engineId.getValue()));
+			}
+		};
+		try {
+			snmp.send(pdu, target, null, listener);
+		} catch (IOException e) {
+			discovered(key, discovery, null);
+		}
+	}
+	
+	private void discovered(String key, CompletableFuture<byte[]> discovery, byte[] engineId) {
+		if (engineId == null)
+			engineIds.remove(key, discovery);
+		discovery.complete(engineId);
+	}
+
+	public void forget(Address address) {
+		CompletableFuture<byte[]> discovery = engineIds.remove(address.toString());
+		byte[] engineId = discovery == null ? null : discovery.getNow(null);
+		if (engineId != null)
+			usm.removeEngineTime(new OctetString(engineId));
+	}
+
+	// add the user's keys for the engine unless they have been localized to it already
+	public void localize(byte[] engineId, SNMPAttribute attributes) {
+		OID auth = getAuthProtocol(attributes);
+		OID priv = getPrivProtocol(attributes);
+		String key = new OctetString(engineId).toHexString() + "/" + attributes.getSecurityName() + "/" + auth + "/" + priv
+				+ "/" + digest(attributes.getAuthPassphrase(), attributes.getPrivPassphrase());
+		if (localized.containsKey(key))
+			return;
+		// derived outside the map, two threads racing here only add the same keys twice
+		byte[] authKey = auth == null ? null : protocols.passwordToKey(auth, new OctetString(attributes.getAuthPassphrase()), engineId);
+		byte[] privKey = priv == null ? null : protocols.passwordToKey(priv, auth, new OctetString(attributes.getPrivPassphrase()), engineId);
+		usm.addLocalizedUser(engineId, new OctetString(attributes.getSecurityName()), auth, authKey, priv, privKey);
+		localized.put(key, Boolean.TRUE);
+	}
+
+	// SHA-256 of the passphrases, each length prefixed, so a changed passphrase is never taken for
+	// the one already localized and the passphrases themselves are not kept in the key
+	private String digest(String... passphrases) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for (String passphrase: passphrases) {
+				byte[] bytes = passphrase == null ? new byte[0] : passphrase.getBytes(StandardCharsets.UTF_8);
+				digest.update(ByteBuffer.allocate(4).putInt(passphrase == null ? -1 : bytes.length).array());
+				digest.update(bytes);
+			}
+			return new OctetString(digest.digest()).toHexString();
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform provides SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public int getSecurityLevel(SNMPAttribute attributes) {
+		if (getAuthProtocol(attributes) == null)
+			return SecurityLevel.NOAUTH_NOPRIV;
+		if (getPrivProtocol(attributes) == null)
+			return SecurityLevel.AUTH_NOPRIV;
+		return SecurityLevel.AUTH_PRIV;
+	}
+
+	private OID getAuthProtocol(SNMPAttribute attributes) {
+		if (attributes.getAuthProtocol() == null || attributes.getAuthPassphrase() == null)
+			return null;
+		switch (attributes.getAuthProtocol().replace("-", "").toUpperCase()) {
+			case "MD5":
+				return AuthMD5.ID;
+			case "SHA":
+			case "SHA1":
+				return AuthSHA.ID;
+			case "SHA224":
+				return AuthHMAC128SHA224.ID;
+			case "SHA256":
+				return AuthHMAC192SHA256.ID;
+			case "SHA384":
+				return AuthHMAC256SHA384.ID;
+			case "SHA512":
+				return AuthHMAC384SHA512.ID;
+			default:
+				throw new IllegalArgumentException("Unknown SNMPv3 authentication protocol " + attributes.getAuthProtocol());
+		}
+	}
+
+	// privacy needs authentication
+	private OID getPrivProtocol(SNMPAttribute attributes) {
+		if (attributes.getPrivProtocol() == null || attributes.getPrivPassphrase() == null || getAuthProtocol(attributes) == null)
+			return null;
+		switch (attributes.getPrivProtocol().replace("-", "").toUpperCase()) {
+			case "DES":
+				return PrivDES.ID;
+			case "3DES":
+				return Priv3DES.ID;
+			case "AES":
+			case "AES128":
+				return PrivAES128.ID;
+			case "AES192":
+				return PrivAES192.ID;
+			case "AES256":
+				return PrivAES256.ID;
+			default:
+				throw new IllegalArgumentException("Unknown SNMPv3 privacy protocol " + attributes.getPrivProtocol());
+		}
+	}
+
+}
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright 2016-2017 Dell Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @microservice:  device-snmp
+ * @author: Anantha Boyapalle, Dell
+ * @version: 1.0.0
+ *******************************************************************************/
+package org.edgexfoundry.snmp;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.snmp4j.Snmp;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+
+// One stripe of the driver's transport pool, a UDP socket with its own listen thread and session
+public class SNMPSession {
+
+	private final int index;
+	private final DefaultUdpTransportMapping transportMapping;
+	private final Snmp snmp;
+	
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong responses = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+
+	public SNMPSession(int index, int receiveBufferSize, SNMPSecurity security) throws IOException {
+		this.index = index;
+		transportMapping = new DefaultUdpTransportMapping();
+		if (receiveBufferSize > 0)
+			transportMapping.setReceiveBufferSize(receiveBufferSize);
+		if (!transportMapping.isListening())
+			transportMapping.listen();
+		snmp = new Snmp(transportMapping);
+		security.attach(snmp);
+	}
+
+	public Snmp getSnmp() {
+		return snmp;
+	}
+
+	public void requestSent() {
+		requests.incrementAndGet();
+	}
+
+	public void responseReceived() {
+		responses.incrementAndGet();
+	}
+
+	public void requestTimedOut() {
+		timeouts.incrementAndGet();
+	}
+
+	public void requestFailed() {
+		errors.incrementAndGet();
+	}
+
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+		statistics.put("stripe", index);
+		statistics.put("address", String.valueOf(transportMapping.getListenAddress()));
+		statistics.put("receiveBufferSize", transportMapping.getReceiveBufferSize());
+		statistics.put("requests", requests.get());
+		statistics.put("responses", responses.get());
+		statistics.put("timeouts", timeouts.get());
+		statistics.put("errors", errors.get());
+		return statistics;
+	}
+
+	public void close() throws IOException {
+		snmp.close();
+		transportMapping.close();
+	}
+
+}
@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright 2016-2017 Dell Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @microservice:  device-snmp
+ * @author: Anantha Boyapalle, Dell
+ * @version: 1.0.0
+ *******************************************************************************/
+package org.edgexfoundry.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+
+import org.edgexfoundry.domain.ResponseObject;
+import org.junit.Test;
+
+public class ReadingBufferTest {
+
+	@Test
+	public void testEmpty() {
+		ReadingBuffer buffer = new ReadingBuffer("temp", 3);
+		assertNull(buffer.latest());
+		assertEquals(0, buffer.last(5).size());
+		assertEquals(0, buffer.since(0).size());
+	}
+
+	@Test
+	public void testCapacityAtLeastOne() {
+		ReadingBuffer buffer = new ReadingBuffer("temp", 0);
+		assertEquals(1, buffer.getCapacity());
+		buffer.add(1, "1");
+		buffer.add(2, "2");
+		assertEquals(1, buffer.size());
+		assertEquals("2", buffer.latest().getValue());
+	}
+
+	@Test
+	public void testWraparound() {
+		ReadingBuffer buffer = new ReadingBuffer("temp", 3);
+		for (int i = 1; i <= 5; i++)
+			buffer.add(i * 10, String.valueOf(i));
+		assertEquals(3, buffer.size());
+		List<ResponseObject> readings = buffer.last(10);
+		assertEquals(3, readings.size());
+		assertEquals("5", readings.get(0).getValue());
+		assertEquals("4", readings.get(1).getValue());
+		assertEquals("3", readings.get(2).getValue());
+		assertEquals(50, readings.get(0).getOrigin());
+		assertEquals(30, readings.get(2).getOrigin());
+		assertEquals("temp", readings.get(0).getName());
+	}
+
+	@Test
+	public void testLast() {
+		ReadingBuffer buffer = new ReadingBuffer("temp", 4);
+		buffer.add(1, "a");
+		buffer.add(2, "b");
+		assertEquals(1, buffer.last(1).size());
+		assertEquals("b", buffer.last(1).get(0).getValue());
+		assertEquals(0, buffer.last(-1).size());
+	}
+
+	@Test
+	public void testSince() {
+		ReadingBuffer buffer = new ReadingBuffer("temp", 4);
+		for (int i = 1; i <= 6; i++)
+			buffer.add(i * 10, String.valueOf(i));
+		List<ResponseObject> readings = buffer.since(40);
+		assertEquals(3, readings.size());
+		assertEquals("6", readings.get(0).getValue());
+		assertEquals("4", readings.get(2).getValue());
+		assertEquals(4, buffer.since(0).size());
+		assertEquals(0, buffer.since(61).size());
+	}
+
+	@Test
+	public void testValuesComeBackUnchanged() {
+		String[] values = {"0", "42", "-42", "007", "-0", "+5", "9223372036854775807", "-9223372036854775808",
+				"9223372036854775808", "-9223372036854775809", "12345678901234567890", "1.5", "-0.0", "1e3",
+				"1.0E10", "1.50", ".5", "NaN", "Infinity", "-Infinity", "0x1A", "", "-", "abc", null};
+		ReadingBuffer buffer = new ReadingBuffer("temp", 2);
+		for (String value: values) {
+			buffer.add(0, value);
+			assertEquals(value, buffer.latest().getValue());
+		}
+	}
+
+	@Test
+	public void testSlotReusedAcrossKinds() {
+		ReadingBuffer buffer = new ReadingBuffer("temp", 2);
+		buffer.add(1, "text");
+		buffer.add(2, "2.5");
+		buffer.add(3, "3");
+		buffer.add(4, "more text");
+		buffer.add(5, "5");
+		List<ResponseObject> readings = buffer.last(2);
+		assertEquals("5", readings.get(0).getValue());
+		assertEquals("more text", readings.get(1).getValue());
+	}
+}
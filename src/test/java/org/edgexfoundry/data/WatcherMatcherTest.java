@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright 2016-2017 Dell Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @microservice:  device-snmp
+ * @author: Anantha Boyapalle, Dell
+ * @version: 1.0.0
+ *******************************************************************************/
+package org.edgexfoundry.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.edgexfoundry.domain.meta.ProvisionWatcher;
+import org.junit.Test;
+
+public class WatcherMatcherTest {
+
+	@Test
+	public void testLiteralIdentifier() {
+		WatcherMatcher matcher = new WatcherMatcher(Arrays.asList(
+				watcher("printer", "type", "printer"),
+				watcher("router", "type", "router")));
+		assertEquals("router", name(matcher.match(device("type", "router"))));
+		assertNull(matcher.match(device("type", "switch")));
+	}
+
+	@Test
+	public void testPatternIdentifier() {
+		WatcherMatcher matcher = new WatcherMatcher(Arrays.asList(watcher("lab", "host", "10\\.0\\.0\\.\\d+")));
+		assertEquals("lab", name(matcher.match(device("host", "10.0.0.17"))));
+		assertNull(matcher.match(device("host", "10.0.1.17")));
+	}
+
+	@Test
+	public void testLiteralComparedWhole() {
+		// a value without regex syntax has to be equal, not merely contained
+		WatcherMatcher matcher = new WatcherMatcher(Arrays.asList(watcher("rack", "location", "rack1")));
+		assertNull(matcher.match(device("location", "rack10")));
+	}
+
+	@Test
+	public void testFirstWatcherWins() {
+		WatcherMatcher matcher = new WatcherMatcher(Arrays.asList(
+				watcher("any", "host", ".*"),
+				watcher("exact", "host", "10.0.0.1"),
+				watcher("later", "host", "10\\..*")));
+		assertEquals("any", name(matcher.match(device("host", "10.0.0.1"))));
+
+		matcher = new WatcherMatcher(Arrays.asList(
+				watcher("exact", "host", "gateway"),
+				watcher("any", "host", ".*")));
+		assertEquals("exact", name(matcher.match(device("host", "gateway"))));
+		assertEquals("any", name(matcher.match(device("host", "other"))));
+	}
+
+	@Test
+	public void testAllIdentifiersMustMatch() {
+		WatcherMatcher matcher = new WatcherMatcher(Arrays.asList(
+				watcher("both", "type", "router", "host", "10\\..*"),
+				watcher("type", "type", "router")));
+		assertEquals("both", name(matcher.match(device("type", "router", "host", "10.1.1.1"))));
+		assertEquals("type", name(matcher.match(device("type", "router", "host", "192.168.1.1"))));
+	}
+
+	@Test
+	public void testMissingField() {
+		WatcherMatcher matcher = new WatcherMatcher(Arrays.asList(watcher("lab", "host", ".*")));
+		assertNull(matcher.match(device("type", "router")));
+	}
+
+	@Test
+	public void testInvalidPatternNeverMatches() {
+		WatcherMatcher matcher = new WatcherMatcher(Arrays.asList(
+				watcher("broken", "host", "10.(0"),
+				watcher("fallback", "host", ".*")));
+		assertEquals("fallback", name(matcher.match(device("host", "10.(0"))));
+	}
+
+	@Test
+	public void testNoIdentifiersMatchesAnything() {
+		ProvisionWatcher empty = new ProvisionWatcher();
+		empty.setName("empty");
+		WatcherMatcher matcher = new WatcherMatcher(Arrays.asList(empty));
+		assertEquals("empty", name(matcher.match(device("host", "10.0.0.1"))));
+	}
+
+	private String name(ProvisionWatcher watcher) {
+		return watcher == null ? null : watcher.getName();
+	}
+
+	private ProvisionWatcher watcher(String name, String... identifiers) {
+		Map<String, String> map = new LinkedHashMap<String, String>();
+		for (int i = 0; i < identifiers.length; i += 2)
+			map.put(identifiers[i], identifiers[i + 1]);
+		ProvisionWatcher watcher = new ProvisionWatcher();
+		watcher.setName(name);
+		watcher.setIdentifiers(map);
+		return watcher;
+	}
+
+	private Map<String, String> device(String... fields) {
+		Map<String, String> device = new HashMap<String, String>();
+		for (int i = 0; i < fields.length; i += 2)
+			device.put(fields[i], fields[i + 1]);
+		return device;
+	}
+}
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright 2016-2017 Dell Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @microservice:  device-snmp
+ * @author: Anantha Boyapalle, Dell
+ * @version: 1.0.0
+ *******************************************************************************/
+package org.edgexfoundry.domain;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.snmp4j.smi.Counter64;
+import org.snmp4j.smi.Gauge32;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.IpAddress;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.Opaque;
+import org.snmp4j.smi.Variable;
+
+public class VariableEncoderTest {
+
+	@Test
+	public void testOpaqueFloat() {
+		Variable variable = VariableEncoder.OPAQUE_FLOAT.encode(" 21.5 ");
+		assertTrue(variable instanceof Opaque);
+		byte[] octets = ((Opaque) variable).getValue();
+		assertEquals(7, octets.length);
+		assertEquals((byte) 0x9f, octets[0]);
+		assertEquals((byte) 0x78, octets[1]);
+		assertEquals(4, octets[2]);
+		assertEquals(21.5f, ByteBuffer.wrap(octets, 3, 4).getFloat(), 0);
+	}
+
+	@Test
+	public void testOpaqueDouble() {
+		byte[] octets = ((Opaque) VariableEncoder.OPAQUE_DOUBLE.encode("-0.125")).getValue();
+		assertEquals(11, octets.length);
+		assertEquals((byte) 0x9f, octets[0]);
+		assertEquals((byte) 0x79, octets[1]);
+		assertEquals(8, octets[2]);
+		assertEquals(-0.125, ByteBuffer.wrap(octets, 3, 8).getDouble(), 0);
+	}
+
+	@Test(expected = NumberFormatException.class)
+	public void testOpaqueFloatNotANumber() {
+		VariableEncoder.OPAQUE_FLOAT.encode("warm");
+	}
+
+	@Test
+	public void testIntegers() {
+		assertEquals(new Integer32(-5), VariableEncoder.INTEGER32.encode("-5"));
+		assertEquals(new Gauge32(4294967295L), VariableEncoder.GAUGE32.encode("4294967295"));
+		assertEquals(new Counter64(-1L), VariableEncoder.COUNTER64.encode("18446744073709551615"));
+	}
+
+	@Test
+	public void testTruthValue() {
+		assertEquals(new Integer32(1), VariableEncoder.TRUTH_VALUE.encode("TRUE"));
+		assertEquals(new Integer32(2), VariableEncoder.TRUTH_VALUE.encode("2"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTruthValueInvalid() {
+		VariableEncoder.TRUTH_VALUE.encode("0");
+	}
+
+	@Test
+	public void testHexString() {
+		byte[] expected = {0x0a, (byte) 0xff, 0x10};
+		assertArrayEquals(expected, ((OctetString) VariableEncoder.HEX_STRING.encode("0x0AFF10")).getValue());
+		assertArrayEquals(expected, ((OctetString) VariableEncoder.HEX_STRING.encode("0a:ff:10")).getValue());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testHexStringOddDigits() {
+		VariableEncoder.HEX_STRING.encode("ABC");
+	}
+
+	@Test
+	public void testAddresses() {
+		assertEquals(new IpAddress("10.0.0.1"), VariableEncoder.IP_ADDRESS.encode("10.0.0.1"));
+		assertEquals(new OID("1.3.6.1.2.1.1.5.0"), VariableEncoder.OBJECT_IDENTIFIER.encode("1.3.6.1.2.1.1.5.0"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testIpAddressInvalid() {
+		VariableEncoder.IP_ADDRESS.encode("not an address");
+	}
+
+	@Test
+	public void testForSyntax() {
+		assertSame(VariableEncoder.OPAQUE_FLOAT, VariableEncoder.forSyntax("Opaque-Float"));
+		assertSame(VariableEncoder.OPAQUE_FLOAT, VariableEncoder.forSyntax("float"));
+		assertSame(VariableEncoder.COUNTER64, VariableEncoder.forSyntax("Counter64"));
+		assertSame(VariableEncoder.OCTET_STRING, VariableEncoder.forSyntax("OCTET STRING"));
+		assertNull(VariableEncoder.forSyntax("BITS"));
+		assertNull(VariableEncoder.forSyntax(null));
+	}
+
+	@Test
+	public void testForPropertyType() {
+		assertSame(VariableEncoder.OPAQUE_FLOAT, VariableEncoder.forPropertyType("F"));
+		assertSame(VariableEncoder.INTEGER32, VariableEncoder.forPropertyType("Integer"));
+		assertSame(VariableEncoder.TRUTH_VALUE, VariableEncoder.forPropertyType("b"));
+		assertNull(VariableEncoder.forPropertyType("json"));
+	}
+}
@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright 2016-2017 Dell Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @microservice:  device-snmp
+ * @author: Anantha Boyapalle, Dell
+ * @version: 1.0.0
+ *******************************************************************************/
+package org.edgexfoundry.snmp;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+// the CIDR ranges SNMPDriver.discover sweeps, as first and last host
+public class DiscoveryRangeTest {
+
+	@Test
+	public void testSixteen() {
+		long[] hosts = SNMPDriver.hosts("10.1.200.7/16");
+		assertEquals(65534, count(hosts));
+		assertEquals("10.1.0.1", SNMPDriver.address(hosts[0]));
+		assertEquals("10.1.255.254", SNMPDriver.address(hosts[1]));
+	}
+
+	@Test
+	public void testTwentyFour() {
+		long[] hosts = SNMPDriver.hosts("192.168.1.0/24");
+		assertEquals(254, count(hosts));
+		assertEquals("192.168.1.1", SNMPDriver.address(hosts[0]));
+		assertEquals("192.168.1.254", SNMPDriver.address(hosts[1]));
+	}
+
+	@Test
+	public void testThirtyOneKeepsBothAddresses() {
+		long[] hosts = SNMPDriver.hosts("10.0.0.5/31");
+		assertEquals(2, count(hosts));
+		assertEquals("10.0.0.4", SNMPDriver.address(hosts[0]));
+	}
+
+	@Test
+	public void testThirtyTwo() {
+		long[] hosts = SNMPDriver.hosts("10.0.0.5/32");
+		assertEquals(1, count(hosts));
+		assertEquals("10.0.0.5", SNMPDriver.address(hosts[0]));
+	}
+
+	@Test
+	public void testPlainAddress() {
+		long[] hosts = SNMPDriver.hosts("255.255.255.255");
+		assertEquals(1, count(hosts));
+		assertEquals("255.255.255.255", SNMPDriver.address(hosts[0]));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testWiderThanSixteenRefused() {
+		SNMPDriver.hosts("10.0.0.0/15");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadOctetRefused() {
+		SNMPDriver.hosts("10.0.256.0/24");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNotAnAddressRefused() {
+		SNMPDriver.hosts("10.0.0/24");
+	}
+
+	private long count(long[] hosts) {
+		return hosts[1] - hosts[0] + 1;
+	}
+}
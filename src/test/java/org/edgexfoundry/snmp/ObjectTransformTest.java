@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright 2016-2017 Dell Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @microservice:  device-snmp
+ * @author: Anantha Boyapalle, Dell
+ * @version: 1.0.0
+ *******************************************************************************/
+package org.edgexfoundry.snmp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.edgexfoundry.data.ObjectStore;
+import org.edgexfoundry.domain.ValueTransform;
+import org.edgexfoundry.domain.meta.PropertyValue;
+import org.junit.Before;
+import org.junit.Test;
+import org.snmp4j.smi.OctetString;
+
+public class ObjectTransformTest {
+
+	// a 64 bit mask is too wide for a long, so it sends the same value down the BigInteger path
+	private static final String FULL_MASK = "0xFFFFFFFFFFFFFFFF";
+
+	private ObjectTransform transform;
+
+	@Before
+	public void setup() {
+		transform = new ObjectTransform();
+		transform.objectCache = new ObjectStore();
+		transform.objectCache.setTransformData(true);
+	}
+
+	@Test
+	public void testEightByteValue() {
+		assertEquals(256, read(spec(false, false, null, "0"), "0000000000000100"), 0);
+	}
+
+	@Test
+	public void testEightByteTopBitUnsigned() {
+		assertEquals(0x1p63, read(spec(false, false, null, "0"), "8000000000000000"), 0);
+		assertEquals(0x1p64, read(spec(false, false, null, "0"), "FFFFFFFFFFFFFFFF"), 0);
+	}
+
+	@Test
+	public void testEightByteSigned() {
+		assertEquals(-1, read(spec(true, false, null, "0"), "FFFFFFFFFFFFFFFE"), 0);
+	}
+
+	@Test
+	public void testEightByteShiftIsUnsigned() {
+		assertEquals(0x1p59, read(spec(false, false, null, "4"), "8000000000000000"), 0);
+	}
+
+	@Test
+	public void testEightByteOctets() {
+		OctetString octets = new OctetString(new byte[] {(byte) 0x80, 0, 0, 0, 0, 0, 0, 1});
+		assertEquals(transform.transform(spec(false, false, FULL_MASK, "0"), "8000000000000001"),
+				transform.transform(spec(false, false, null, "0"), octets));
+	}
+
+	@Test
+	public void testLongPathMatchesBigIntegerPath() {
+		Random random = new Random(17);
+		for (int i = 0; i < 1000; i++) {
+			String hex = String.format("%016X", random.nextLong());
+			boolean signed = random.nextBoolean();
+			boolean lsb = random.nextBoolean();
+			String shift = String.valueOf(random.nextInt(9));
+			assertEquals(hex + " signed " + signed + " lsb " + lsb + " shift " + shift,
+					transform.transform(spec(signed, lsb, FULL_MASK, shift), hex),
+					transform.transform(spec(signed, lsb, null, shift), hex));
+		}
+	}
+
+	private double read(ValueTransform spec, String hex) {
+		return Double.parseDouble(transform.transform(spec, hex));
+	}
+
+	private ValueTransform spec(boolean signed, boolean lsb, String mask, String shift) {
+		PropertyValue value = new PropertyValue();
+		value.setType("F");
+		value.setLSB(String.valueOf(lsb));
+		value.setWord("2");
+		value.setSize("16");
+		value.setSigned(signed);
+		value.setShift(shift);
+		if (mask != null)
+			value.setMask(mask);
+		return new ValueTransform(value);
+	}
+}